@@ -104,4 +104,105 @@ public class DetectCollision {
 		return R;
 	}
 
+	//////////////////////////////////////////////////////////////////////////////////
+	// Primitive versions: same arithmetic and results as above, written into R    //
+	//////////////////////////////////////////////////////////////////////////////////
+	public static void LinesegLineseg(double p1x, double p1y, double p1z, double q1x, double q1y, double q1z, double p2x, double p2y, double p2z, double q2x, double q2y, double q2z, Result R) {
+		double d1x = q1x-p1x, d1y = q1y-p1y, d1z = q1z-p1z;		// Direction of S1
+		double d2x = q2x-p2x, d2y = q2y-p2y, d2z = q2z-p2z;		// Direction of S2
+		double rx = p1x-p2x, ry = p1y-p2y, rz = p1z-p2z;
+		double a = d1x*d1x + d1y*d1y + d1z*d1z;
+		double e = d2x*d2x + d2y*d2y + d2z*d2z;
+		double f = d2x*rx + d2y*ry + d2z*rz;
+		double c = d1x*rx + d1y*ry + d1z*rz;
+		double b = d1x*d2x + d1y*d2y + d1z*d2z;
+		double denom = a*e-b*b;
+		double s;
+		if(denom!=0.0) {
+			s = Common.Clamp((b*f-c*e) /  denom, 0.0, 1.0);
+		} else	s = 0.0;
+		double t = (b*s + f) / e;
+		if(t<0.0) {
+			t = 0.0;
+			s = Common.Clamp(-c/a, 0.0, 1.0);
+		} else if (t>1.0) {
+			t = 1.0;
+			s = Common.Clamp((b-c)/a, 0.0, 1.0);
+		}
+		SetClosest(p1x, p1y, p1z, d1x, d1y, d1z, s, p2x, p2y, p2z, d2x, d2y, d2z, t, R);
+	}
+
+	public static void LinesegLineseg(Vector3d p1, Vector3d q1, Vector3d p2, Vector3d q2, Result R) {
+		LinesegLineseg(p1.x, p1.y, p1.z, q1.x, q1.y, q1.z, p2.x, p2.y, p2.z, q2.x, q2.y, q2.z, R);
+	}
+
+	public static void LinesegLineseg(double[] pos, int p1, int q1, int p2, int q2, Result R) {		// Points are at offsets p1, q1, ... (x, y, z) in pos
+		LinesegLineseg(pos[p1], pos[p1+1], pos[p1+2], pos[q1], pos[q1+1], pos[q1+2], pos[p2], pos[p2+1], pos[p2+2], pos[q2], pos[q2+1], pos[q2+2], R);
+	}
+
+	public static void LinesegLine(double p1x, double p1y, double p1z, double q1x, double q1y, double q1z, double p2x, double p2y, double p2z, double q2x, double q2y, double q2z, Result R) {
+		double d1x = q1x-p1x, d1y = q1y-p1y, d1z = q1z-p1z;
+		double d2x = q2x-p2x, d2y = q2y-p2y, d2z = q2z-p2z;
+		double rx = p1x-p2x, ry = p1y-p2y, rz = p1z-p2z;
+		double a = d1x*d1x + d1y*d1y + d1z*d1z;
+		double e = d2x*d2x + d2y*d2y + d2z*d2z;
+		double f = d2x*rx + d2y*ry + d2z*rz;
+		double c = d1x*rx + d1y*ry + d1z*rz;
+		double b = d1x*d2x + d1y*d2y + d1z*d2z;
+		double denom = a*e-b*b;
+		double s;
+		if(denom!=0.0) {
+			s = Common.Clamp((b*f-c*e) /  denom, 0.0, 1.0);
+		} else	s = 0.0;
+		double t = (b*s + f) / e;										// t is unlimited, so no need to clamp
+		SetClosest(p1x, p1y, p1z, d1x, d1y, d1z, s, p2x, p2y, p2z, d2x, d2y, d2z, t, R);
+	}
+
+	public static void LinesegLine(Vector3d p1, Vector3d q1, Vector3d p2, Vector3d q2, Result R) {
+		LinesegLine(p1.x, p1.y, p1.z, q1.x, q1.y, q1.z, p2.x, p2.y, p2.z, q2.x, q2.y, q2.z, R);
+	}
+
+	static void SetClosest(double p1x, double p1y, double p1z, double d1x, double d1y, double d1z, double s, double p2x, double p2y, double p2z, double d2x, double d2y, double d2z, double t, Result R) {
+		R.c1x = p1x+d1x*s;		R.c1y = p1y+d1y*s;		R.c1z = p1z+d1z*s;
+		R.c2x = p2x+d2x*t;		R.c2y = p2y+d2y*t;		R.c2z = p2z+d2z*t;
+		R.dPx = R.c1x-R.c2x;	R.dPy = R.c1y-R.c2y;	R.dPz = R.c1z-R.c2z;
+		R.dist = Math.sqrt(R.dPx*R.dPx + R.dPy*R.dPy + R.dPz*R.dPz);
+		R.sc = s;
+		R.tc = t;
+	}
+
+	public static void LinesegPoint(double p1x, double p1y, double p1z, double q1x, double q1y, double q1z, double p2x, double p2y, double p2z, Result R) {
+		double abx = q1x-p1x, aby = q1y-p1y, abz = q1z-p1z;
+		double wx = p2x-p1x, wy = p2y-p1y, wz = p2z-p1z;
+		double rpos = (wx*abx + wy*aby + wz*abz)/(abx*abx + aby*aby + abz*abz);
+		rpos = Common.Clamp(rpos, 0.0, 1.0);
+		SetProjection(p1x, p1y, p1z, abx, aby, abz, rpos, p2x, p2y, p2z, R);
+	}
+
+	public static void LinesegPoint(Vector3d p1, Vector3d q1, Vector3d p2, Result R) {
+		LinesegPoint(p1.x, p1.y, p1.z, q1.x, q1.y, q1.z, p2.x, p2.y, p2.z, R);
+	}
+
+	public static void LinesegPoint(double[] pos, int p1, int q1, int p2, Result R) {			// Points are at offsets p1, q1 and p2 (x, y, z) in pos
+		LinesegPoint(pos[p1], pos[p1+1], pos[p1+2], pos[q1], pos[q1+1], pos[q1+2], pos[p2], pos[p2+1], pos[p2+2], R);
+	}
+
+	public static void LinePoint(double p1x, double p1y, double p1z, double q1x, double q1y, double q1z, double p2x, double p2y, double p2z, Result R) {
+		double abx = q1x-p1x, aby = q1y-p1y, abz = q1z-p1z;
+		double wx = p2x-p1x, wy = p2y-p1y, wz = p2z-p1z;
+		double rpos = (wx*abx + wy*aby + wz*abz)/(abx*abx + aby*aby + abz*abz);	// Not clamped
+		SetProjection(p1x, p1y, p1z, abx, aby, abz, rpos, p2x, p2y, p2z, R);
+	}
+
+	public static void LinePoint(Vector3d p1, Vector3d q1, Vector3d p2, Result R) {
+		LinePoint(p1.x, p1.y, p1.z, q1.x, q1.y, q1.z, p2.x, p2.y, p2.z, R);
+	}
+
+	static void SetProjection(double p1x, double p1y, double p1z, double abx, double aby, double abz, double rpos, double p2x, double p2y, double p2z, Result R) {
+		R.dPx = p1x+abx*rpos - p2x;
+		R.dPy = p1y+aby*rpos - p2y;
+		R.dPz = p1z+abz*rpos - p2z;
+		R.dist = Math.sqrt(R.dPx*R.dPx + R.dPy*R.dPy + R.dPz*R.dPz);
+		R.sc = rpos;
+	}
 }
@@ -0,0 +1,10 @@
+package ericson;
+
+public class Result {			// Reusable result for the primitive methods in DetectCollision. Same values as in ReturnObject, but nothing is allocated
+	public double dPx, dPy, dPz;	// Vector from the closest point on the second object to the closest point on the first
+	public double dist;
+	public double sc;
+	public double tc;
+	public double c1x, c1y, c1z;	// Closest points, only set by LinesegLineseg and LinesegLine
+	public double c2x, c2y, c2z;
+}
@@ -0,0 +1,463 @@
+package ibm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class AABBTree extends Broadphase {	// Dynamic bounding volume hierarchy. Each cell is a leaf with a fattened axis-aligned bounding box. Leaves are only reinserted once their cell leaves the fat box
+	public double margin;				// [m] Added to each side of the box of a cell to get the fat box of its leaf
+	public int NReinsert = 0;			// Number of times a leaf was reinserted because its cell moved out of the fat box
+	int NReinsertBuild = 0;				// NReinsert at the last Rebuild()
+	Model model;
+	// Nodes are stored in arrays. Free nodes form a linked list through parent
+	int[] parent = new int[16];
+	int[] child0 = new int[16];			// -1 for leaves
+	int[] child1 = new int[16];
+	int[] height = new int[16];			// 0 for leaves
+	double[] aabb = new double[6*16];	// {minx, miny, minz, maxx, maxy, maxz} per node
+	Cell[] cell = new Cell[16];			// Cell of each leaf node, null for internal nodes
+	int[] cellIndex = new int[16];		// Index of the leaf's cell in model.cellArray, set in FindPairs()
+	int root = -1;
+	int freeNode = -1;
+	int NNode = 0;						// Number of nodes used so far, including free ones
+	HashMap<Cell, Integer> leafOf = new HashMap<Cell, Integer>();
+	// Scratch arrays
+	Cursor cursor = new Cursor();
+	int[] neighbour = new int[16];
+	double[] updateBox = new double[0];
+	double[] cellBox = new double[6];
+	double[] centre = new double[16];	// Centre of each leaf along the split axis, used in Build()
+
+	public static class Cursor {		// Scratch arrays for a query. Each thread querying the tree needs its own
+		int[] stack = new int[64];
+		public int[] hit = new int[16];	// Results of the last query
+	}
+
+	///////////////////////////////////////////////////////////////////
+
+	public AABBTree(Model model, double margin) {
+		this.model = model;
+		this.margin = margin;
+		for(Cell cell : model.cellArray) {
+			CollisionGrid.CellBox(cell, 1.0, 0.0, cellBox, 0);
+			int leaf = AllocateNode();
+			this.cell[leaf] = cell;
+			SetFatBox(leaf, cellBox, 0);
+			leafOf.put(cell, leaf);
+		}
+		Rebuild();
+	}
+
+	public int NLeaf() {
+		return leafOf.size();
+	}
+
+	public void Insert(Cell cell) {
+		CollisionGrid.CellBox(cell, 1.0, 0.0, cellBox, 0);
+		int leaf = AllocateNode();
+		this.cell[leaf] = cell;
+		SetFatBox(leaf, cellBox, 0);
+		InsertLeaf(leaf);
+		leafOf.put(cell, leaf);
+	}
+
+	public void Remove(Cell cell) {
+		Integer leaf = leafOf.remove(cell);
+		if(leaf==null)		return;
+		RemoveLeaf(leaf);
+		FreeNode(leaf);
+	}
+
+	public void Rebuild() {						// Builds the tree top-down from the current leaves. Gives a better tree than inserting leaves one by one
+		int NLeaf = leafOf.size();
+		int[] leaves = new int[NLeaf];
+		freeNode = -1;
+		int iLeaf = 0;
+		for(int node=NNode-1; node>=0; node--) {		// Keep leaves, free all other nodes
+			if(cell[node]!=null)	leaves[iLeaf++] = node;
+			else					FreeNode(node);
+		}
+		if(centre.length < NNode)		centre = new double[NNode];
+		root = NLeaf==0 ? -1 : Build(leaves, 0, NLeaf);
+		if(root!=-1)		parent[root] = -1;
+		NReinsertBuild = NReinsert;
+	}
+	
+	public void Clear() {
+		root = -1;
+		freeNode = -1;
+		NNode = 0;
+		Arrays.fill(cell, null);
+		leafOf.clear();
+	}
+
+	/////////////////////////////////////////////////////
+
+	public void FindPairs(double[] box, int NCell, PairList pairs) {
+		pairs.Clear();
+		Update(box, NCell);
+		for(int ii=0; ii<NCell; ii++) {
+			int NHit = QueryLeaves(box, 6*ii, cursor);
+			int[] hit = cursor.hit;
+			int NNeighbour = 0;
+			for(int ih=0; ih<NHit; ih++) {
+				int jj = cellIndex[hit[ih]];
+				if(jj<=ii || !CollisionGrid.Overlap(box, ii, jj))		continue;		// Fat boxes overlap, check the actual boxes
+				if(NNeighbour==neighbour.length)	neighbour = Arrays.copyOf(neighbour, 2*NNeighbour);
+				neighbour[NNeighbour++] = jj;
+			}
+			Arrays.sort(neighbour, 0, NNeighbour);
+			for(int in=0; in<NNeighbour; in++) 	pairs.Add(ii, neighbour[in]);
+		}
+	}
+
+	public void Update() {						// Refits the tree to the current cell positions and sizes. Needed before queries if cells moved or grew outside relaxation
+		int NCell = model.cellArray.size();
+		if(updateBox.length < 6*NCell)		updateBox = new double[6*NCell];
+		for(int ii=0; ii<NCell; ii++) 		CollisionGrid.CellBox(model.cellArray.get(ii), 1.0, 0.0, updateBox, 6*ii);
+		Update(updateBox, NCell);
+	}
+
+	public void Update(Cell cell) {				// Refits the leaf of a single cell, e.g. after it was moved outside relaxation. Call Update() before QueryIndex()
+		CollisionGrid.CellBox(cell, 1.0, 0.0, cellBox, 0);
+		Integer leaf = leafOf.get(cell);
+		if(leaf==null) {
+			Insert(cell);
+		} else if(!Contains(leaf, cellBox, 0)) {
+			RemoveLeaf(leaf);
+			SetFatBox(leaf, cellBox, 0);
+			InsertLeaf(leaf);
+			NReinsert++;
+		}
+	}
+
+	public void Query(double[] box, int offset, ArrayList<Cell> result) {	// Adds all cells whose fat box overlaps box to result. Call Update() first if cells have moved
+		int NHit = QueryLeaves(box, offset, cursor);
+		for(int ih=0; ih<NHit; ih++) 	result.add(cell[cursor.hit[ih]]);
+	}
+
+	public int QueryIndex(double[] box, int offset, Cursor cursor) {		// Puts the index of all cells whose fat box overlaps box in cursor.hit, returns how many there are. Call Update() first
+		int NHit = QueryLeaves(box, offset, cursor);
+		int[] hit = cursor.hit;
+		for(int ih=0; ih<NHit; ih++) 	hit[ih] = cellIndex[hit[ih]];
+		return NHit;
+	}
+
+	void Update(double[] box, int NCell) {
+		Refit(box, NCell);
+		if(leafOf.size()!=NCell) {			// Cells were removed without the tree being told, start over
+			Clear();
+			Refit(box, NCell);
+			Rebuild();
+		} else if(NReinsert-NReinsertBuild > NCell) {	// Many leaves were reinserted, tree is probably far from optimal
+			Rebuild();
+		}
+	}
+
+	void Refit(double[] box, int NCell) {
+		for(int ii=0; ii<NCell; ii++) {
+			Cell c = model.cellArray.get(ii);
+			Integer leafObject = leafOf.get(c);
+			int leaf;
+			if(leafObject==null) {				// New cell
+				leaf = AllocateNode();
+				cell[leaf] = c;
+				SetFatBox(leaf, box, 6*ii);
+				InsertLeaf(leaf);
+				leafOf.put(c, leaf);
+			} else {
+				leaf = leafObject;
+				if(!Contains(leaf, box, 6*ii)) {	// Moved out of its fat box, reinsert with a new fat box
+					RemoveLeaf(leaf);
+					SetFatBox(leaf, box, 6*ii);
+					InsertLeaf(leaf);
+					NReinsert++;
+				}
+			}
+			cellIndex[leaf] = ii;
+		}
+	}
+
+	int Build(int[] leaves, int start, int end) {	// Builds a subtree for leaves[start] to leaves[end-1], split at the median along the widest axis. Returns its root
+		if(end-start==1)	return leaves[start];
+		double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+		double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+		for(int ii=start; ii<end; ii++) {
+			for(int dim=0; dim<3; dim++) {
+				double c = aabb[6*leaves[ii]+dim] + aabb[6*leaves[ii]+dim+3];
+				min[dim] = Math.min(min[dim], c);
+				max[dim] = Math.max(max[dim], c);
+			}
+		}
+		int axis = 0;
+		if(max[1]-min[1] > max[axis]-min[axis])		axis = 1;
+		if(max[2]-min[2] > max[axis]-min[axis])		axis = 2;
+		for(int ii=start; ii<end; ii++) 	centre[leaves[ii]] = aabb[6*leaves[ii]+axis] + aabb[6*leaves[ii]+axis+3];
+		int mid = (start+end)/2;
+		Select(leaves, start, end-1, mid);
+		int c0 = Build(leaves, start, mid);			// Build children first, AllocateNode() may replace the arrays
+		int c1 = Build(leaves, mid, end);
+		int node = AllocateNode();
+		child0[node] = c0;
+		child1[node] = c1;
+		parent[c0] = node;
+		parent[c1] = node;
+		height[node] = 1 + Math.max(height[c0], height[c1]);
+		Union(node, c0, c1);
+		return node;
+	}
+	
+	void Select(int[] leaves, int lo, int hi, int k) {	// Partially sorts leaves[lo..hi] by centre, so that leaves[k] is in its sorted position (quickselect)
+		while(lo<hi) {
+			double pivot = centre[leaves[(lo+hi)>>>1]];
+			int ii = lo, jj = hi;
+			while(ii<=jj) {
+				while(centre[leaves[ii]] < pivot)		ii++;
+				while(centre[leaves[jj]] > pivot)		jj--;
+				if(ii<=jj) {
+					int swap = leaves[ii];
+					leaves[ii++] = leaves[jj];
+					leaves[jj--] = swap;
+				}
+			}
+			if(k<=jj)		hi = jj;
+			else if(k>=ii)	lo = ii;
+			else			return;
+		}
+	}
+
+	int QueryLeaves(double[] box, int offset, Cursor cursor) {		// Puts all leaves whose fat box overlaps box in cursor.hit, returns how many there are. Only reads the tree
+		if(root==-1)		return 0;
+		int[] stack = cursor.stack;
+		int[] hit = cursor.hit;
+		int NHit = 0;
+		int top = 0;
+		stack[top++] = root;
+		while(top>0) {
+			int node = stack[--top];
+			int o = 6*node;
+			if(aabb[o  ] > box[offset+3] || box[offset  ] > aabb[o+3] ||
+					aabb[o+1] > box[offset+4] || box[offset+1] > aabb[o+4] ||
+					aabb[o+2] > box[offset+5] || box[offset+2] > aabb[o+5])		continue;
+			if(child0[node]==-1) {
+				if(NHit==hit.length)		hit = cursor.hit = Arrays.copyOf(hit, 2*NHit);
+				hit[NHit++] = node;
+			} else {
+				if(top+2>stack.length)		stack = cursor.stack = Arrays.copyOf(stack, 2*stack.length);
+				stack[top++] = child0[node];
+				stack[top++] = child1[node];
+			}
+		}
+		return NHit;
+	}
+
+	/////////////////////////////////////////////////////
+
+	int AllocateNode() {
+		int node;
+		if(freeNode!=-1) {
+			node = freeNode;
+			freeNode = parent[node];
+		} else {
+			if(NNode==parent.length) {
+				int capacity = 2*NNode;
+				parent = Arrays.copyOf(parent, capacity);
+				child0 = Arrays.copyOf(child0, capacity);
+				child1 = Arrays.copyOf(child1, capacity);
+				height = Arrays.copyOf(height, capacity);
+				aabb = Arrays.copyOf(aabb, 6*capacity);
+				cell = Arrays.copyOf(cell, capacity);
+				cellIndex = Arrays.copyOf(cellIndex, capacity);
+			}
+			node = NNode++;
+		}
+		parent[node] = -1;
+		child0[node] = -1;
+		child1[node] = -1;
+		height[node] = 0;
+		cell[node] = null;
+		return node;
+	}
+
+	void FreeNode(int node) {
+		cell[node] = null;
+		parent[node] = freeNode;
+		freeNode = node;
+	}
+
+	void SetFatBox(int leaf, double[] box, int offset) {
+		for(int dim=0; dim<3; dim++) {
+			aabb[6*leaf+dim] = box[offset+dim] - margin;
+			aabb[6*leaf+dim+3] = box[offset+dim+3] + margin;
+		}
+	}
+
+	boolean Contains(int leaf, double[] box, int offset) {
+		int o = 6*leaf;
+		return aabb[o  ] <= box[offset  ] && aabb[o+1] <= box[offset+1] && aabb[o+2] <= box[offset+2] &&
+				aabb[o+3] >= box[offset+3] && aabb[o+4] >= box[offset+4] && aabb[o+5] >= box[offset+5];
+	}
+
+	double Area(int node) {							// Half the surface area of the node's box
+		int o = 6*node;
+		double dx = aabb[o+3]-aabb[o], dy = aabb[o+4]-aabb[o+1], dz = aabb[o+5]-aabb[o+2];
+		return dx*dy + dy*dz + dz*dx;
+	}
+
+	double AreaUnion(int node0, int node1) {		// Half the surface area of the box around both nodes
+		int o0 = 6*node0, o1 = 6*node1;
+		double dx = Math.max(aabb[o0+3], aabb[o1+3]) - Math.min(aabb[o0  ], aabb[o1  ]);
+		double dy = Math.max(aabb[o0+4], aabb[o1+4]) - Math.min(aabb[o0+1], aabb[o1+1]);
+		double dz = Math.max(aabb[o0+5], aabb[o1+5]) - Math.min(aabb[o0+2], aabb[o1+2]);
+		return dx*dy + dy*dz + dz*dx;
+	}
+
+	void Union(int node, int node0, int node1) {	// Sets the box of node to the box around node0 and node1
+		for(int dim=0; dim<3; dim++) {
+			aabb[6*node+dim] = Math.min(aabb[6*node0+dim], aabb[6*node1+dim]);
+			aabb[6*node+dim+3] = Math.max(aabb[6*node0+dim+3], aabb[6*node1+dim+3]);
+		}
+	}
+
+	void InsertLeaf(int leaf) {
+		if(root==-1) {
+			root = leaf;
+			parent[leaf] = -1;
+			return;
+		}
+		// Find the best sibling, i.e. the one that increases the total surface area of the tree least
+		int index = root;
+		while(child0[index]!=-1) {
+			int c0 = child0[index];
+			int c1 = child1[index];
+			double area = Area(index);
+			double combinedArea = AreaUnion(index, leaf);
+			double cost = 2.0*combinedArea;							// Cost of a new parent for this node and the leaf
+			double inheritanceCost = 2.0*(combinedArea - area);		// Minimum cost of pushing the leaf further down
+			double cost0 = AreaUnion(c0, leaf) + inheritanceCost;
+			if(child0[c0]!=-1) 		cost0 -= Area(c0);
+			double cost1 = AreaUnion(c1, leaf) + inheritanceCost;
+			if(child0[c1]!=-1) 		cost1 -= Area(c1);
+			if(cost < cost0 && cost < cost1)		break;
+			index = cost0 < cost1 ? c0 : c1;
+		}
+		int sibling = index;
+		// Create a new parent for sibling and leaf
+		int oldParent = parent[sibling];
+		int newParent = AllocateNode();
+		parent[newParent] = oldParent;
+		Union(newParent, leaf, sibling);
+		height[newParent] = height[sibling] + 1;
+		if(oldParent!=-1) {
+			if(child0[oldParent]==sibling)	child0[oldParent] = newParent;
+			else							child1[oldParent] = newParent;
+		} else {
+			root = newParent;
+		}
+		child0[newParent] = sibling;
+		child1[newParent] = leaf;
+		parent[sibling] = newParent;
+		parent[leaf] = newParent;
+		// Refit and balance the ancestors
+		RefitAncestors(parent[leaf]);
+	}
+
+	void RemoveLeaf(int leaf) {
+		if(leaf==root) {
+			root = -1;
+			return;
+		}
+		int oldParent = parent[leaf];
+		int grandParent = parent[oldParent];
+		int sibling = child0[oldParent]==leaf ? child1[oldParent] : child0[oldParent];
+		if(grandParent!=-1) {						// Replace the parent with the sibling
+			if(child0[grandParent]==oldParent)	child0[grandParent] = sibling;
+			else								child1[grandParent] = sibling;
+			parent[sibling] = grandParent;
+			FreeNode(oldParent);
+			RefitAncestors(grandParent);
+		} else {
+			root = sibling;
+			parent[sibling] = -1;
+			FreeNode(oldParent);
+		}
+		parent[leaf] = -1;
+	}
+
+	void RefitAncestors(int index) {		// Walks from node index to the root, balancing and updating boxes and heights
+		while(index!=-1) {
+			index = Balance(index);
+			int c0 = child0[index];
+			int c1 = child1[index];
+			height[index] = 1 + Math.max(height[c0], height[c1]);
+			Union(index, c0, c1);
+			index = parent[index];
+		}
+	}
+
+	int Balance(int iA) {							// Rotates a child up if node iA is imbalanced, returns the node now at the position of iA
+		if(child0[iA]==-1 || height[iA]<2)	return iA;
+		int iB = child0[iA];
+		int iC = child1[iA];
+		int balance = height[iC] - height[iB];
+		if(balance > 1) {							// Rotate C up
+			int iF = child0[iC];
+			int iG = child1[iC];
+			child0[iC] = iA;
+			parent[iC] = parent[iA];
+			parent[iA] = iC;
+			ReplaceChild(parent[iC], iA, iC);
+			if(height[iF] > height[iG]) {
+				child1[iC] = iF;
+				child1[iA] = iG;
+				parent[iG] = iA;
+				Union(iA, iB, iG);
+				Union(iC, iA, iF);
+				height[iA] = 1 + Math.max(height[iB], height[iG]);
+				height[iC] = 1 + Math.max(height[iA], height[iF]);
+			} else {
+				child1[iC] = iG;
+				child1[iA] = iF;
+				parent[iF] = iA;
+				Union(iA, iB, iF);
+				Union(iC, iA, iG);
+				height[iA] = 1 + Math.max(height[iB], height[iF]);
+				height[iC] = 1 + Math.max(height[iA], height[iG]);
+			}
+			return iC;
+		}
+		if(balance < -1) {							// Rotate B up
+			int iD = child0[iB];
+			int iE = child1[iB];
+			child0[iB] = iA;
+			parent[iB] = parent[iA];
+			parent[iA] = iB;
+			ReplaceChild(parent[iB], iA, iB);
+			if(height[iD] > height[iE]) {
+				child1[iB] = iD;
+				child0[iA] = iE;
+				parent[iE] = iA;
+				Union(iA, iC, iE);
+				Union(iB, iA, iD);
+				height[iA] = 1 + Math.max(height[iC], height[iE]);
+				height[iB] = 1 + Math.max(height[iA], height[iD]);
+			} else {
+				child1[iB] = iE;
+				child0[iA] = iD;
+				parent[iD] = iA;
+				Union(iA, iC, iD);
+				Union(iB, iA, iE);
+				height[iA] = 1 + Math.max(height[iC], height[iD]);
+				height[iB] = 1 + Math.max(height[iA], height[iE]);
+			}
+			return iB;
+		}
+		return iA;
+	}
+
+	void ReplaceChild(int node, int oldChild, int newChild) {
+		if(node==-1) 					root = newChild;
+		else if(child0[node]==oldChild)	child0[node] = newChild;
+		else							child1[node] = newChild;
+	}
+}
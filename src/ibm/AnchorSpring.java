@@ -33,6 +33,7 @@ public class AnchorSpring extends Spring {
 	public void ResetRestLength() {
 		final Ball ball = ballArray[0];							// Final because anchoring springs are not recycled
 		restLength = RestLength(ball.pos.z, ball.radius);
+		ballArray[0].cell.model.SpringsChanged();
 	}
 	
 	public void ResetK() {
@@ -44,6 +45,7 @@ public class AnchorSpring extends Spring {
 		else if(shape==1 || shape==2)		springDiv = 2.0;
 		else throw new IndexOutOfBoundsException("Cell type: " + cell.type);
 		K = model.Kan/springDiv;
+		model.SpringsChanged();
 	}
 	
 	public int Break() {
@@ -57,6 +59,7 @@ public class AnchorSpring extends Spring {
 			cell0.anchorSpringArray.remove(sibling);
 			count += (model.anchorSpringArray.remove(sibling))?1:0;
 		}
+		model.SpringsChanged();
 		return count;
 	}
 	
@@ -0,0 +1,13 @@
+package ibm;
+
+public abstract class Broadphase {		// Finds pairs of cells that might collide, based on their axis-aligned bounding boxes
+	
+	public abstract void FindPairs(double[] box, int NCell, PairList pairs);	// Box holds 6 values per cell in model.cellArray, see CollisionGrid.CellBox(). Pairs are sorted by ii, then jj
+
+	public static Broadphase Create(Model model, double margin) {	// Broadphase set by model.broadphase, for boxes that are margin larger than the cells. The tree ignores margin: it is model.CollisionTree(), shared by all relaxation callers, and refits its fat boxes to whatever boxes it is given. Callers with much larger boxes need their own AABBTree, see Model.FormBreak()
+		if(model.broadphase==1)			return new CollisionGrid(CollisionGrid.BinSize(model) + 2.0*margin);
+		else if(model.broadphase==2)	return model.CollisionTree();
+		else if(model.broadphase==3)	return new SweepAndPrune();
+		else throw new IndexOutOfBoundsException("Broadphase: " + model.broadphase);
+	}
+}
@@ -45,6 +45,7 @@ public class Cell implements Serializable {
 		} else {
 			throw new IndexOutOfBoundsException("Cell type: " + type);
 		}
+		model.CellCreated(this);		// Now that the balls are there
 	}
 	
 	// Vector3d instead of double
@@ -174,6 +175,13 @@ public class Cell implements Serializable {
 		}
 	}
 	
+	public double BallRadius(double amount) {								// Radius the balls would get from SetAmount(amount), without changing the cell
+		int shape = model.shapeX[type];
+		if(shape==0) 						return Ball.Radius(amount, type, model, radiusModifier);
+		else if(shape==1 || shape==2)		return Ball.Radius(amount/2.0, type, model, radiusModifier);
+		else throw new IndexOutOfBoundsException("Cell type: " + type);
+	}
+	
 	public double SurfaceArea() {
 		return SurfaceArea(1.0);
 	}
@@ -210,17 +218,20 @@ public class Cell implements Serializable {
 			if(shape1==0)	{												// Sphere-sphere
 				return cell.ballArray[0].pos.minus(ballArray[0].pos).norm();
 			} else if(shape1==1 || shape1==2) {								// Sphere-rod
-				ericson.ReturnObject C = ericson.DetectCollision.LinesegPoint(cell.ballArray[0].pos, cell.ballArray[1].pos, this.ballArray[0].pos);
+				ericson.Result C = model.Closest();
+				ericson.DetectCollision.LinesegPoint(cell.ballArray[0].pos, cell.ballArray[1].pos, this.ballArray[0].pos, C);
 				return C.dist;
 			} else {														// Unknown!
 				throw new IndexOutOfBoundsException("Cell type: " + cell.type);
 			}
 		} else if(shape0==1 || shape0==2) {									// Rod-???
 			if(shape1==0) {													// Rod-sphere
-				ericson.ReturnObject C = ericson.DetectCollision.LinesegPoint(this.ballArray[0].pos, this.ballArray[1].pos, cell.ballArray[0].pos);
+				ericson.Result C = model.Closest();
+				ericson.DetectCollision.LinesegPoint(this.ballArray[0].pos, this.ballArray[1].pos, cell.ballArray[0].pos, C);
 				return C.dist; 
 			} else if(shape1==1 || shape1==2) {								// Rod-rod
-				ericson.ReturnObject C = ericson.DetectCollision.LinesegLineseg(this.ballArray[0].pos, this.ballArray[1].pos, cell.ballArray[0].pos, cell.ballArray[1].pos);
+				ericson.Result C = model.Closest();
+				ericson.DetectCollision.LinesegLineseg(this.ballArray[0].pos, this.ballArray[1].pos, cell.ballArray[0].pos, cell.ballArray[1].pos, C);
 				return C.dist;		
 			} else {															// Unknown!
 				throw new IndexOutOfBoundsException("Cell type: " + cell.type);
@@ -246,22 +257,16 @@ public class Cell implements Serializable {
 	}
 	
 	public void Remove() {
-		for(StickSpring spring : stickSpringArray) {
-			spring.Break();
-		}
-		for(AnchorSpring spring : anchorSpringArray) {
-			spring.Break();
-		}
-		for(FilSpring spring : filSpringArray) {
-			spring.Break();
-		}
-		for(RodSpring spring : rodSpringArray) {
-			spring.Break();
-		}
+		// Break() removes springs from these arrays, so don't iterate over them
+		while(!stickSpringArray.isEmpty()) 		stickSpringArray.get(0).Break();
+		while(!anchorSpringArray.isEmpty()) 	anchorSpringArray.get(0).Break();
+		while(!filSpringArray.isEmpty()) 		filSpringArray.get(0).Break();
+		while(!rodSpringArray.isEmpty()) 		rodSpringArray.get(0).Break();
 		for(Ball ball : ballArray) {
 			ball.Remove();
 		}
 		model.cellArray.remove(this);
+		model.CellRemoved(this);
 		// Error checking. TODO: This can probably be removed
 		for(Cell cell : model.cellArray) {
 			if(cell.stickCellArray.contains(this)) {
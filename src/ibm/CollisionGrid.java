@@ -0,0 +1,134 @@
+package ibm;
+
+import java.util.Arrays;
+
+public class CollisionGrid extends Broadphase {	// Uniform grid (cell list) broadphase. Bins the bounding box of each cell, pairs are only searched for within bins
+	public double binSize;				// [m] Edge length of a bin
+	// Bin entries, counting sorted per bucket of the hashed bin coordinates. Arrays are recycled between calls
+	int[] bucketStart = new int[2];
+	int[] bucketFill = new int[2];
+	int[] entryCell = new int[0];
+	int[] entryBin = new int[0];		// ix, iy, iz of the bin this entry is in
+	int[] neighbour = new int[16];		// Scratch array with neighbours of one cell
+
+	///////////////////////////////////////////////////////////////////
+
+	public CollisionGrid(double binSize) {
+		this.binSize = binSize;
+	}
+
+	public static double BinSize(Model model) {
+		// Largest extent of any cell type that is present: length of the longest cell plus the diameter of the largest ball
+		boolean[] present = new boolean[model.NXType];
+		for(Cell cell : model.cellArray) 	present[cell.type] = true;
+		double binSize = 0.0;
+		for(int type=0; type<model.NXType; type++) {
+			if(!present[type])		continue;
+			int shape = model.shapeX[type];
+			double length = (shape==1 || shape==2) ? model.lengthCellMax[type] : 0.0;
+			binSize = Math.max(binSize, length + 2.0*model.radiusCellMax[type]);
+		}
+		return binSize;
+	}
+
+	public static void CellBox(Cell cell, double radiusFactor, double margin, double[] box, int offset) {	// Axis-aligned bounding box of the cell's capsule: {minx, miny, minz, maxx, maxy, maxz}
+		Ball ball0 = cell.ballArray[0];
+		Ball ball1 = cell.ballArray[cell.ballArray.length-1];		// Same as ball0 for spheres
+		double r = ball0.radius*radiusFactor + margin;
+		box[offset  ] = Math.min(ball0.pos.x, ball1.pos.x) - r;
+		box[offset+1] = Math.min(ball0.pos.y, ball1.pos.y) - r;
+		box[offset+2] = Math.min(ball0.pos.z, ball1.pos.z) - r;
+		box[offset+3] = Math.max(ball0.pos.x, ball1.pos.x) + r;
+		box[offset+4] = Math.max(ball0.pos.y, ball1.pos.y) + r;
+		box[offset+5] = Math.max(ball0.pos.z, ball1.pos.z) + r;
+	}
+
+	/////////////////////////////////////////////////////
+
+	public void FindPairs(double[] box, int NCell, PairList pairs) {
+		// Finds all pairs ii<jj whose boxes (6 values per cell, see CellBox()) overlap. Pairs are sorted by ii, then jj, i.e. the same order as a double loop over all cells
+		pairs.Clear();
+		if(!(binSize>0.0)) {						// No sensible bin size (e.g. cell dimensions not set), fall back on largest box
+			for(int ii=0; ii<NCell; ii++)
+				for(int dim=0; dim<3; dim++)		binSize = Math.max(binSize, box[6*ii+dim+3]-box[6*ii+dim]);
+			if(!(binSize>0.0))		binSize = 1.0;
+		}
+		// Count entries and set up the hash table (power of 2 number of buckets, at least twice the number of entries)
+		int NEntry = 0;
+		for(int ii=0; ii<NCell; ii++) {
+			NEntry += (Bin(box[6*ii+3])-Bin(box[6*ii  ])+1) * (Bin(box[6*ii+4])-Bin(box[6*ii+1])+1) * (Bin(box[6*ii+5])-Bin(box[6*ii+2])+1);
+		}
+		int NBucket = 1;
+		while(NBucket < 2*NEntry)	NBucket <<= 1;
+		final int mask = NBucket-1;
+		if(bucketStart.length < NBucket+1) {
+			bucketStart = new int[NBucket+1];
+			bucketFill = new int[NBucket+1];
+		} else {
+			Arrays.fill(bucketStart, 0, NBucket+1, 0);
+		}
+		if(entryCell.length < NEntry) {
+			entryCell = new int[NEntry];
+			entryBin = new int[3*NEntry];
+		}
+		// Counting sort of entries over buckets
+		for(int ii=0; ii<NCell; ii++) {
+			int ix1 = Bin(box[6*ii+3]), iy1 = Bin(box[6*ii+4]), iz1 = Bin(box[6*ii+5]);
+			for(int ix=Bin(box[6*ii]); ix<=ix1; ix++)
+				for(int iy=Bin(box[6*ii+1]); iy<=iy1; iy++)
+					for(int iz=Bin(box[6*ii+2]); iz<=iz1; iz++)
+						bucketStart[Hash(ix, iy, iz, mask)+1]++;
+		}
+		for(int ib=0; ib<NBucket; ib++) 	bucketStart[ib+1] += bucketStart[ib];
+		System.arraycopy(bucketStart, 0, bucketFill, 0, NBucket);
+		for(int ii=0; ii<NCell; ii++) {
+			int ix1 = Bin(box[6*ii+3]), iy1 = Bin(box[6*ii+4]), iz1 = Bin(box[6*ii+5]);
+			for(int ix=Bin(box[6*ii]); ix<=ix1; ix++)
+				for(int iy=Bin(box[6*ii+1]); iy<=iy1; iy++)
+					for(int iz=Bin(box[6*ii+2]); iz<=iz1; iz++) {
+						int ie = bucketFill[Hash(ix, iy, iz, mask)]++;
+						entryCell[ie] = ii;
+						entryBin[3*ie  ] = ix;
+						entryBin[3*ie+1] = iy;
+						entryBin[3*ie+2] = iz;
+					}
+		}
+		// Find pairs per cell ii
+		for(int ii=0; ii<NCell; ii++) {
+			int NNeighbour = 0;
+			int ix1 = Bin(box[6*ii+3]), iy1 = Bin(box[6*ii+4]), iz1 = Bin(box[6*ii+5]);
+			for(int ix=Bin(box[6*ii]); ix<=ix1; ix++)
+				for(int iy=Bin(box[6*ii+1]); iy<=iy1; iy++)
+					for(int iz=Bin(box[6*ii+2]); iz<=iz1; iz++) {
+						int ib = Hash(ix, iy, iz, mask);
+						for(int ie=bucketStart[ib]; ie<bucketStart[ib+1]; ie++) {
+							int jj = entryCell[ie];
+							if(jj<=ii || entryBin[3*ie]!=ix || entryBin[3*ie+1]!=iy || entryBin[3*ie+2]!=iz)		continue;		// Only other cells in the same bin, not a hash collision
+							if(!Overlap(box, ii, jj))		continue;
+							// A pair shares several bins if boxes are large. Only report it in the bin containing the lower corner of the overlapping region
+							if(Bin(Math.max(box[6*ii  ], box[6*jj  ]))!=ix ||
+									Bin(Math.max(box[6*ii+1], box[6*jj+1]))!=iy ||
+									Bin(Math.max(box[6*ii+2], box[6*jj+2]))!=iz)		continue;
+							if(NNeighbour==neighbour.length)	neighbour = Arrays.copyOf(neighbour, 2*NNeighbour);
+							neighbour[NNeighbour++] = jj;
+						}
+					}
+			Arrays.sort(neighbour, 0, NNeighbour);
+			for(int in=0; in<NNeighbour; in++) 	pairs.Add(ii, neighbour[in]);
+		}
+	}
+
+	public static boolean Overlap(double[] box, int ii, int jj) {
+		return box[6*ii  ] <= box[6*jj+3] && box[6*jj  ] <= box[6*ii+3] &&
+				box[6*ii+1] <= box[6*jj+4] && box[6*jj+1] <= box[6*ii+4] &&
+				box[6*ii+2] <= box[6*jj+5] && box[6*jj+2] <= box[6*ii+5];
+	}
+
+	int Bin(double x) {
+		return (int) Math.floor(x/binSize);
+	}
+
+	static int Hash(int ix, int iy, int iz, int mask) {
+		return ((ix*73856093) ^ (iy*19349663) ^ (iz*83492791)) & mask;
+	}
+}
@@ -64,6 +64,7 @@ public class FilSpring extends Spring {
 			throw new IndexOutOfBoundsException("Spring type: " + type);
 		}
 		restLength = RestLength(type, ball0.radius, ball1.radius, rodRestLength0, rodRestLength1, model);
+		model.SpringsChanged();
 	}
 
 	public void ResetK() {
@@ -90,6 +91,7 @@ public class FilSpring extends Spring {
 		default:
 			throw new IndexOutOfBoundsException("Spring type: " + type);
 		}
+		model.SpringsChanged();
 	}
 
 	public int Break() {
@@ -106,6 +108,7 @@ public class FilSpring extends Spring {
 			cell1.filSpringArray.remove(sibling);
 			count += (model.filSpringArray.remove(sibling))?1:0;
 		}
+		model.SpringsChanged();
 		return count;
 	}
 	
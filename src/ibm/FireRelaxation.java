@@ -0,0 +1,121 @@
+package ibm;
+
+import java.util.Arrays;
+
+public class FireRelaxation {		// FIRE (fast inertial relaxation engine): minimises the energy with inertial steps instead of following the dynamics, as relaxation only has to remove overlap and stretch
+	Model model;
+	RelaxationODE ode;
+	ForceKernel kernel;
+	double[] v;						// [m/s] Velocities of the minimiser, 3 per ball. The kernel's velocities stay zero, so Forces() adds no damping
+	static final int NDelay = 5;			// Steps with the force along the velocity before the step may grow
+	static final double fInc = 1.1;			// Step growth
+	static final double fDec = 0.5;			// Step reduction on restart
+	static final double alphaStart = 0.1;	// Velocity mixing after a restart
+	static final double fAlpha = 0.99;
+	static final double dtMaxFactor = 10.0;	// Largest step, relative to the initial step
+	static final double dtMinFactor = 0.02;
+	static final int NStallMax = 1000;		// Steps without the largest ball force dropping by 1% before giving up. Some points of the force field have no equilibrium, e.g. a spring compressed to zero length flips its force with each step
+	public int NRestart;					// Reported as rejected steps by Model.Relaxation()
+
+	///////////////////////////////////////////////////////////////////
+
+	public FireRelaxation(Model model, RelaxationODE ode) {
+		this.model = model;
+		this.ode = ode;
+		if(ode.kernel==null) 	ode.kernel = new ForceKernel(model, RelaxationODE.radiusModifier);
+		kernel = ode.kernel;
+		v = new double[3*kernel.NBall];
+	}
+
+	public void Integrate(double[] y) {		// Minimises from the positions in y until the largest ball force is below model.fireForceTol, or for model.fireNStepMax steps. Returns the positions in y and zero velocities. Calls model.RelaxationStep() after each step. With model.rodConstraint, the rods stay at their rest length and only forces across them count
+		int NPerBall = model.overdamped ? 3 : 6;
+		double[] pos = kernel.pos, vel = kernel.vel, force = kernel.force, mass = kernel.mass;
+		for(int ii=0; ii<kernel.NBall; ii++) 	System.arraycopy(y, NPerBall*ii, pos, 3*ii, 3);
+		Arrays.fill(vel, 0, 3*kernel.NBall, 0.0);
+		double mMin = Double.MAX_VALUE;
+		for(int ii=0; ii<kernel.NBall; ii++) 	mMin = Math.min(mMin, mass[ii]);
+		double dt0 = 0.1*Math.sqrt(mMin/ode.MaxStiffness());		// A tenth of the period of the lightest ball on the stiffest spring
+		double dt = dt0;
+		double alpha = alphaStart;
+		int NPositive = 0;
+		double F2Best = Double.MAX_VALUE;
+		int iBest = 0;
+		double tol2 = model.fireForceTol*model.fireForceTol;
+		for(int iStep=0; ; iStep++) {
+			kernel.Forces();
+			if(model.rodConstraint) 	kernel.RodConstraint(v, false);
+			double P = 0.0, F2 = 0.0, v2 = 0.0, F2Max = 0.0;
+			for(int ii=0; ii<kernel.NBall; ii++) {
+				if(Resting(ii)) {
+					force[3*ii+2] = 0.0;
+					v[3*ii+2] = 0.0;
+				}
+				double fx = force[3*ii], fy = force[3*ii+1], fz = force[3*ii+2];
+				double f2 = fx*fx + fy*fy + fz*fz;
+				F2Max = Math.max(F2Max, f2);
+				F2 += f2;
+				v2 += v[3*ii]*v[3*ii] + v[3*ii+1]*v[3*ii+1] + v[3*ii+2]*v[3*ii+2];
+				P += fx*v[3*ii] + fy*v[3*ii+1] + fz*v[3*ii+2];
+			}
+			if(iStep>=model.fireNStepMax) {		// Also when springs keep changing at the minimum
+				model.Write("    FIRE relaxation stopped after " + iStep + " steps, largest ball force " + Math.sqrt(F2Max) + " N", "warning");
+				break;
+			}
+			if(F2Max<=tol2) {
+				int version = model.SpringVersion();
+				model.RelaxationStep(ode, 0.0, true);		// Springs may still form or break at the minimum
+				if(model.SpringVersion()==version) 	break;
+				continue;
+			}
+			if(F2Max < 0.98*F2Best) {
+				F2Best = F2Max;
+				iBest = iStep;
+			} else if(iStep-iBest>=NStallMax) {
+				model.Write("    FIRE relaxation stuck after " + iStep + " steps, largest ball force " + Math.sqrt(F2Max) + " N", "iter");
+				break;
+			}
+			if(P>0.0) {
+				double mix = alpha*Math.sqrt(v2/F2);
+				for(int ii=0; ii<3*kernel.NBall; ii++) 	v[ii] = (1.0-alpha)*v[ii] + mix*force[ii];
+				if(NPositive>NDelay) {
+					dt = Math.min(dt*fInc, dtMaxFactor*dt0);
+					alpha *= fAlpha;
+				}
+				NPositive++;
+			} else if(v2>0.0) {						// Went uphill: step back half a step, stop and start again carefully. Not at the start, when there is no velocity yet
+				NRestart++;
+				NPositive = 0;
+				if(iStep>=NDelay) 	dt = Math.max(dt*fDec, dtMinFactor*dt0);
+				alpha = alphaStart;
+				for(int ii=0; ii<3*kernel.NBall; ii++) {
+					pos[ii] -= 0.5*dt*v[ii];
+					v[ii] = 0.0;
+				}
+			}
+			for(int ii=0; ii<kernel.NBall; ii++) {	// Semi-implicit Euler
+				double f = dt/mass[ii];
+				for(int jj=3*ii; jj<3*ii+3; jj++) {
+					v[jj] += f*force[jj];
+					pos[jj] += dt*v[jj];
+				}
+			}
+			if(model.rodConstraint) {
+				kernel.ShakeRods(v, dt);
+				kernel.RattleRods(v);
+			}
+			model.RelaxationStep(ode, dt, false);
+		}
+		for(int ii=0; ii<kernel.NBall; ii++) {
+			System.arraycopy(pos, 3*ii, y, NPerBall*ii, 3);
+			if(NPerBall==6) 	Arrays.fill(y, 6*ii+3, 6*ii+6, 0.0);		// At rest
+		}
+	}
+
+	boolean Resting(int ii) {				// Whether ball ii rests where gravity switches off, at 1.1 radius (see ForceKernel.BodyForce()): it is pulled down just above and pushed up, or not at all, just below. It then stays there: its vertical force and velocity are set to zero
+		if(!model.gravity || model.gravityZ) 	return false;
+		double z = kernel.pos[3*ii+2], r = kernel.radius[ii];
+		if(Math.abs(z-1.1*r) > model.relaxationOverlapLim) 	return false;
+		double fz = z>1.1*r ? kernel.force[3*ii+2]-kernel.weight[ii] : kernel.force[3*ii+2];		// Without gravity
+		return fz>=0.0 && fz+kernel.weight[ii]<=0.0;
+	}
+}
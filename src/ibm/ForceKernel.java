@@ -0,0 +1,596 @@
+package ibm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class ForceKernel {				// Relaxation forces computed on flat arrays indexed by ball (index in model.ballArray) and cell. Gives the same results as the Ball and Cell objects in RelaxationODE, but allocates nothing per evaluation
+	Model model;
+	public int NBall, NCell;
+	// Ball state, copied from y each evaluation. 3 values per ball
+	public double[] pos, vel, force;
+	public double[] radius, mass;		// [m], [kg]
+	double[] weight;					// [N] Gravity and buoyancy
+	// Cells
+	int[] cellBall0, cellBall1;			// Ball indices, the same for spheres
+	int[] cellShape;
+	boolean allSpheres;					// Contacts can use SphereContacts()
+	SpringTable springs = new SpringTable();
+	IdentityHashMap<Ball,Integer> ballIndex;
+	// Collision detection
+	final double radiusModifier;
+	Broadphase broadphase;
+	NeighbourList neighbourList;
+	PairList pairs = new PairList();
+	double[] box = new double[0];
+	Scratch scratch = new Scratch();
+	// Parallel evaluation, see ForcesParallel() and ForcesOrdered()
+	Scratch[] taskScratch = new Scratch[0];
+	double[][] buffer = new double[0][];		// Forces summed by each task
+	PairList[] brutePairs = new PairList[0];
+	int[] contactN = new int[0];				// Per pair: number of balls the contact force acts on, see Contact()
+	int[] contactBall = new int[0];				// 4 per pair
+	double[] contactForce = new double[0];		// 12 per pair
+	double[] springForce = new double[0];		// 3 per spring in springs
+	int[] ballContact0, ballContact = new int[0];	// Contacts of ball ii are ballContact[ballContact0[ii]] to ballContact[ballContact0[ii+1]-1], as 4*pair+index
+
+	///////////////////////////////////////////////////////////////////
+
+	public ForceKernel(Model model, double radiusModifier) {		// Copies the balls, cells and springs in model. Balls and cells cannot be added or removed afterwards
+		this.model = model;
+		this.radiusModifier = radiusModifier;
+		NBall = model.ballArray.size();
+		NCell = model.cellArray.size();
+		pos = new double[3*NBall];
+		vel = new double[3*NBall];
+		force = new double[3*NBall];
+		radius = new double[NBall];
+		mass = new double[NBall];
+		weight = new double[NBall];
+		ballContact0 = new int[NBall+1];
+		ballIndex = new IdentityHashMap<Ball,Integer>(2*NBall);
+		for(int ii=0; ii<NBall; ii++) {
+			Ball ball = model.ballArray.get(ii);
+			ballIndex.put(ball, ii);
+			double MWX = model.MWX[ball.cell.type];
+			double rhoX = model.rhoX[ball.cell.type];
+			radius[ii] = ball.radius;
+			mass[ii] = ball.n*MWX;
+			weight[ii] = model.G * (rhoX-model.rhoWater) * ball.n*MWX/rhoX;
+		}
+		cellBall0 = new int[NCell];
+		cellBall1 = new int[NCell];
+		cellShape = new int[NCell];
+		for(int iCell=0; iCell<NCell; iCell++) {
+			Cell cell = model.cellArray.get(iCell);
+			cellBall0[iCell] = ballIndex.get(cell.ballArray[0]);
+			cellBall1[iCell] = ballIndex.get(cell.ballArray[cell.ballArray.length-1]);
+			cellShape[iCell] = model.shapeX[cell.type];
+		}
+		allSpheres = true;
+		for(int iCell=0; iCell<NCell; iCell++) 	allSpheres &= cellShape[iCell]==0;
+		BuildSprings();
+	}
+
+	public void BuildSprings() {		// Copies the springs from the model. Done automatically when Model.SpringVersion() changed
+		springs.Build(model, ballIndex);
+	}
+
+	public void Derivatives(double[] y, double[] yDot) {		// Same as RelaxationODE.computeDerivatives() with the Ball and Cell objects
+		Read(y);
+		Forces();
+		if(model.rodConstraint) 	RodConstraint(vel, false);
+		for(int ii=0; ii<NBall; ii++) {
+			double m = mass[ii];
+			yDot[6*ii  ] = vel[3*ii  ];						// dpos/dt = v;
+			yDot[6*ii+1] = vel[3*ii+1];
+			yDot[6*ii+2] = vel[3*ii+2];
+			yDot[6*ii+3] = force[3*ii  ]/m;					// dvel/dt = a = f/M
+			yDot[6*ii+4] = force[3*ii+1]/m;
+			yDot[6*ii+5] = force[3*ii+2]/m;
+		}
+	}
+
+	public void Velocities(double[] y, double[] yDot) {		// Overdamped: velocity = force/Kd, for positions y (3 values per ball). See OverdampedODE
+		System.arraycopy(y, 0, pos, 0, 3*NBall);
+		Arrays.fill(vel, 0, 3*NBall, 0.0);			// So no damping force is added
+		Forces();
+		if(model.rodConstraint) 	RodConstraint(null, true);
+		for(int ii=0; ii<3*NBall; ii++) {
+			vel[ii] = force[ii]/model.Kd;
+			yDot[ii] = vel[ii];
+		}
+	}
+
+	public void Read(double[] y) {		// Copies positions and velocities from y, 6 values per ball
+		for(int ii=0; ii<NBall; ii++) {
+			pos[3*ii  ] = y[6*ii  ];
+			pos[3*ii+1] = y[6*ii+1];
+			pos[3*ii+2] = y[6*ii+2];
+			vel[3*ii  ] = y[6*ii+3];
+			vel[3*ii+1] = y[6*ii+4];
+			vel[3*ii+2] = y[6*ii+5];
+		}
+	}
+
+	public void Synchronise() {			// Copies positions, velocities and forces to the Ball objects, e.g. before FormBreak() or saving
+		for(int ii=0; ii<NBall; ii++) {
+			Ball ball = model.ballArray.get(ii);
+			ball.pos.x = pos[3*ii  ];		ball.pos.y = pos[3*ii+1];		ball.pos.z = pos[3*ii+2];
+			ball.vel.x = vel[3*ii  ];		ball.vel.y = vel[3*ii+1];		ball.vel.z = vel[3*ii+2];
+			ball.force.x = force[3*ii  ];	ball.force.y = force[3*ii+1];	ball.force.z = force[3*ii+2];
+		}
+	}
+
+	public void Forces() {				// Computes force from pos and vel. Forces are summed in the same order as in RelaxationODE, unless model.parallelForce==1. Without the rods if model.rodConstraint or model.rigidRods, see RodConstraint() and RigidRodODE
+		if(springs.version!=model.SpringVersion()) 	BuildSprings();
+		if(model.parallelForce!=0) {
+			ForkJoinPool pool = model.Pool();
+			if(pool.getParallelism()>1) {
+				if(model.parallelForce==1) 		ForcesParallel(pool);
+				else if(model.parallelForce==2)	ForcesOrdered(pool);
+				else throw new IndexOutOfBoundsException("parallelForce: " + model.parallelForce);
+				return;
+			}
+		}
+		Arrays.fill(force, 0, 3*NBall, 0.0);
+		Contacts(force);
+		for(int ii=0; ii<NBall; ii++) 		BallForce(ii);
+		for(int ii=FirstSpring(); ii<springs.N; ii++) 	Spring(force, scratch, ii);
+	}
+
+	public void SlowForces() {			// Only contacts and BodyForce(), without springs and damping, into force. For multiple time stepping, see RespaRelaxation. Serial
+		Arrays.fill(force, 0, 3*NBall, 0.0);
+		Contacts(force);
+		for(int ii=0; ii<NBall; ii++) 		BodyForce(ii);
+	}
+
+	public void SpringForces(double[] F) {		// Only the springs, into F
+		if(springs.version!=model.SpringVersion()) 	BuildSprings();
+		Arrays.fill(F, 0, 3*NBall, 0.0);
+		for(int ii=FirstSpring(); ii<springs.N; ii++) 	Spring(F, scratch, ii);
+	}
+
+	int FirstSpring() {					// Rods come first in springs. With model.rodConstraint they are constraints, with model.rigidRods rigid bodies (see RigidRodODE), not forces
+		return model.rodConstraint || model.rigidRods ? springs.NRod : 0;
+	}
+
+	public void RodConstraint(double[] v, boolean overdamped) {		// Adds the force that keeps each rod at its rest length to force, for model.rodConstraint. Each ball is in at most one rod, so each rod has its own multiplier. Inertial, the relative acceleration along the rod cancels the centripetal term of the velocities v (null if at rest); overdamped, the relative velocity along the rod is zero. Drift from the rest length decays at model.rodConstraintRate (Baumgarte stabilisation)
+		final double w = model.rodConstraintRate;
+		for(int ii=0; ii<springs.NRod; ii++) {
+			int i0 = springs.ball0[ii], i1 = springs.ball1[ii];
+			double rx = pos[3*i1]-pos[3*i0], ry = pos[3*i1+1]-pos[3*i0+1], rz = pos[3*i1+2]-pos[3*i0+2];
+			double r2 = rx*rx + ry*ry + rz*rz;
+			double g = 0.5*(r2 - springs.restLength[ii]*springs.restLength[ii]);		// Zero on the constraint
+			double mu;
+			if(overdamped) {
+				double rf = rx*(force[3*i1]-force[3*i0]) + ry*(force[3*i1+1]-force[3*i0+1]) + rz*(force[3*i1+2]-force[3*i0+2]);
+				mu = -(rf + model.Kd*w*g) / (2.0*r2);
+			} else {
+				double w0 = 1.0/mass[i0], w1 = 1.0/mass[i1];
+				double ra = rx*(w1*force[3*i1]-w0*force[3*i0]) + ry*(w1*force[3*i1+1]-w0*force[3*i0+1]) + rz*(w1*force[3*i1+2]-w0*force[3*i0+2]);
+				double v2 = 0.0, rv = 0.0;
+				if(v!=null) {
+					double vx = v[3*i1]-v[3*i0], vy = v[3*i1+1]-v[3*i0+1], vz = v[3*i1+2]-v[3*i0+2];
+					v2 = vx*vx + vy*vy + vz*vz;
+					rv = rx*vx + ry*vy + rz*vz;
+				}
+				mu = -(v2 + ra + 2.0*w*rv + w*w*g) / (r2*(w0+w1));
+			}
+			Subtract(force, i0, mu*rx, mu*ry, mu*rz);
+			Add(force, i1, mu*rx, mu*ry, mu*rz);
+		}
+	}
+
+	public void ShakeRods(double[] v, double dt) {		// Moves the balls of each rod along it to its rest length, the heavier ball less. The move over dt is added to the velocities v, unless v is null (SHAKE for a single distance constraint, solved exactly)
+		for(int ii=0; ii<springs.NRod; ii++) {
+			int i0 = springs.ball0[ii], i1 = springs.ball1[ii];
+			double w0 = 1.0/mass[i0], w1 = 1.0/mass[i1];
+			double rx = pos[3*i1]-pos[3*i0], ry = pos[3*i1+1]-pos[3*i0+1], rz = pos[3*i1+2]-pos[3*i0+2];
+			double d = Math.sqrt(rx*rx + ry*ry + rz*rz);
+			double c = (d-springs.restLength[ii])/(d*(w0+w1));
+			Add(pos, i0, w0*c*rx, w0*c*ry, w0*c*rz);
+			Subtract(pos, i1, w1*c*rx, w1*c*ry, w1*c*rz);
+			if(v!=null) {
+				c /= dt;
+				Add(v, i0, w0*c*rx, w0*c*ry, w0*c*rz);
+				Subtract(v, i1, w1*c*rx, w1*c*ry, w1*c*rz);
+			}
+		}
+	}
+
+	public void RattleRods(double[] v) {		// Removes the relative velocity along each rod from v, conserving momentum (RATTLE)
+		for(int ii=0; ii<springs.NRod; ii++) {
+			int i0 = springs.ball0[ii], i1 = springs.ball1[ii];
+			double w0 = 1.0/mass[i0], w1 = 1.0/mass[i1];
+			double rx = pos[3*i1]-pos[3*i0], ry = pos[3*i1+1]-pos[3*i0+1], rz = pos[3*i1+2]-pos[3*i0+2];
+			double k = (rx*(v[3*i1]-v[3*i0]) + ry*(v[3*i1+1]-v[3*i0+1]) + rz*(v[3*i1+2]-v[3*i0+2])) / ((rx*rx + ry*ry + rz*rz)*(w0+w1));
+			Add(v, i0, w0*k*rx, w0*k*ry, w0*k*rz);
+			Subtract(v, i1, w1*k*rx, w1*k*ry, w1*k*rz);
+		}
+	}
+
+	void Contacts(double[] force) {		// Collision forces, serial
+		if(model.broadphase==0) {
+			CollisionsBruteForce(force, scratch, 0, 1);
+		} else {
+			PairList pairs = FindPairs();
+			if(allSpheres && model.sphereKernel) 	SphereContacts(force, scratch, pairs, 0, pairs.N);
+			else for(int ii=0; ii<pairs.N; ii++) 	Collision(force, scratch, pairs.cell0[ii], pairs.cell1[ii]);
+		}
+	}
+
+	void ForcesParallel(ForkJoinPool pool) {		// Same as Forces(), but collisions and springs are split over one task per thread, each summing into its own buffer. The buffers are then added up per ball
+		final int NTask = pool.getParallelism();
+		final Scratch[] taskScratch = TaskScratch(NTask);
+		if(buffer.length!=NTask) 	buffer = new double[NTask][];
+		final PairList pairs = model.broadphase==0 ? null : FindPairs();
+		ArrayList<RecursiveAction> taskArray = new ArrayList<RecursiveAction>(NTask);
+		for(int iTask=0; iTask<NTask; iTask++) {
+			final int task = iTask;
+			taskArray.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				protected void compute() {
+					double[] f = buffer[task];
+					if(f==null || f.length<3*NBall) 	f = buffer[task] = new double[3*NBall];
+					else								Arrays.fill(f, 0, 3*NBall, 0.0);
+					Scratch S = taskScratch[task];
+					if(pairs==null) {
+						CollisionsBruteForce(f, S, task, NTask);
+					} else if(allSpheres && model.sphereKernel) {
+						SphereContacts(f, S, pairs, Start(pairs.N, task, NTask), Start(pairs.N, task+1, NTask));
+					} else {
+						for(int ii=Start(pairs.N, task, NTask); ii<Start(pairs.N, task+1, NTask); ii++) 	Collision(f, S, pairs.cell0[ii], pairs.cell1[ii]);
+					}
+					for(int ii=Math.max(FirstSpring(), Start(springs.N, task, NTask)); ii<Start(springs.N, task+1, NTask); ii++) 	Spring(f, S, ii);
+				}
+			});
+		}
+		Run(pool, taskArray);
+		// Add up the buffers, then add the forces that only depend on the ball itself
+		taskArray.clear();
+		for(int iTask=0; iTask<NTask; iTask++) {
+			final int start = Start(NBall, iTask, NTask);
+			final int end = Start(NBall, iTask+1, NTask);
+			taskArray.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				protected void compute() {
+					for(int ii=3*start; ii<3*end; ii++) {
+						double sum = 0.0;
+						for(int iBuffer=0; iBuffer<NTask; iBuffer++) 	sum += buffer[iBuffer][ii];
+						force[ii] = sum;
+					}
+					for(int ii=start; ii<end; ii++) 	BallForce(ii);
+				}
+			});
+		}
+		Run(pool, taskArray);
+	}
+
+	void ForcesOrdered(ForkJoinPool pool) {		// Same result as the serial Forces(), bit for bit, for any number of threads. The force of each contact and spring is computed in parallel and stored, then each ball adds up its own forces in the serial order
+		final int NTask = pool.getParallelism();
+		final Scratch[] taskScratch = TaskScratch(NTask);
+		final PairList pairs = model.broadphase==0 ? BruteForcePairs(pool) : FindPairs();
+		final int NPair = pairs.N;
+		if(contactN.length < NPair) {
+			int N = Math.max(NPair, 2*contactN.length);
+			contactN = new int[N];
+			contactBall = new int[4*N];
+			contactForce = new double[12*N];
+		}
+		final SpringTable springs = this.springs;
+		final int NSpring = springs.N;
+		if(springs.ballSpring==null) 	springs.BuildBallTable(NBall);
+		if(springForce.length < 3*NSpring) 	springForce = new double[3*springs.K.length];
+		// Forces of each contact and spring
+		ArrayList<RecursiveAction> taskArray = new ArrayList<RecursiveAction>(NTask);
+		for(int iTask=0; iTask<NTask; iTask++) {
+			final int task = iTask;
+			taskArray.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				protected void compute() {
+					ericson.Result E = taskScratch[task].E;
+					for(int ii=Start(NPair, task, NTask); ii<Start(NPair, task+1, NTask); ii++) 	contactN[ii] = Contact(E, pairs.cell0[ii], pairs.cell1[ii], contactBall, contactForce, 4*ii);
+					for(int ii=Start(NSpring, task, NTask); ii<Start(NSpring, task+1, NTask); ii++) {
+						if(ii<FirstSpring()) 	Arrays.fill(springForce, 3*ii, 3*ii+3, 0.0);
+						else 					springs.Force(pos, ii, springForce, 3*ii);
+					}
+				}
+			});
+		}
+		Run(pool, taskArray);
+		// Contacts per ball, in pair order
+		Arrays.fill(ballContact0, 0, NBall+1, 0);
+		int NContact = 0;
+		for(int ii=0; ii<NPair; ii++) {
+			for(int kk=0; kk<contactN[ii]; kk++) 	ballContact0[contactBall[4*ii+kk]+1]++;
+			NContact += contactN[ii];
+		}
+		for(int ii=0; ii<NBall; ii++) 	ballContact0[ii+1] += ballContact0[ii];
+		if(ballContact.length < NContact) 	ballContact = new int[Math.max(NContact, 2*ballContact.length)];
+		for(int ii=0; ii<NPair; ii++) {
+			for(int kk=0; kk<contactN[ii]; kk++) 	ballContact[ballContact0[contactBall[4*ii+kk]]++] = 4*ii+kk;
+		}
+		for(int ii=NBall; ii>0; ii--) 	ballContact0[ii] = ballContact0[ii-1];		// Undo the shift from filling
+		ballContact0[0] = 0;
+		// Each ball sums its own forces: contacts, ball itself, springs
+		taskArray.clear();
+		for(int iTask=0; iTask<NTask; iTask++) {
+			final int start = Start(NBall, iTask, NTask);
+			final int end = Start(NBall, iTask+1, NTask);
+			taskArray.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				protected void compute() {
+					for(int ii=start; ii<end; ii++) {
+						double Fx = 0.0, Fy = 0.0, Fz = 0.0;
+						for(int ic=ballContact0[ii]; ic<ballContact0[ii+1]; ic++) {
+							int o = 3*ballContact[ic];
+							Fx = Fx + contactForce[o];		Fy = Fy + contactForce[o+1];		Fz = Fz + contactForce[o+2];
+						}
+						force[3*ii] = Fx;		force[3*ii+1] = Fy;		force[3*ii+2] = Fz;
+						BallForce(ii);
+						for(int is=springs.ballSpring0[ii]; is<springs.ballSpring0[ii+1]; is++) {
+							int entry = springs.ballSpring[is];
+							int o = 3*(entry>>1);
+							if((entry&1)==0) 	Add(force, ii, springForce[o], springForce[o+1], springForce[o+2]);
+							else 				Subtract(force, ii, springForce[o], springForce[o+1], springForce[o+2]);
+						}
+					}
+				}
+			});
+		}
+		Run(pool, taskArray);
+	}
+
+	PairList BruteForcePairs(ForkJoinPool pool) {		// Pairs within the brute force cut-off, in the same order as CollisionsBruteForce() visits them. Each task checks a block of rows with about the same number of pairs
+		final int NTask = pool.getParallelism();
+		if(brutePairs.length!=NTask) {
+			brutePairs = new PairList[NTask];
+			for(int iTask=0; iTask<NTask; iTask++) 	brutePairs[iTask] = new PairList();
+		}
+		final double maxCollDist = (Common.maxArray(model.lengthCellMax) + Common.maxArray(model.radiusCellMax) * 2.0) * 2.0;
+		ArrayList<RecursiveAction> taskArray = new ArrayList<RecursiveAction>(NTask);
+		long NAll = (long)NCell*(NCell-1)/2, NBefore = 0;
+		int row = 0;
+		for(int iTask=0; iTask<NTask; iTask++) {
+			final int start = row;
+			while(row<NCell && NBefore < NAll*(iTask+1)/NTask) 	NBefore += NCell-1-row++;
+			final int end = iTask==NTask-1 ? NCell : row;
+			final PairList list = brutePairs[iTask];
+			taskArray.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				protected void compute() {
+					list.Clear();
+					for(int iCell=start; iCell<end; iCell++) {
+						int i0 = 3*cellBall0[iCell];
+						for(int jCell=iCell+1; jCell<NCell; jCell++) {
+							int i1 = 3*cellBall0[jCell];
+							double dx = pos[i0]-pos[i1], dy = pos[i0+1]-pos[i1+1], dz = pos[i0+2]-pos[i1+2];
+							if(Math.sqrt(dx*dx+dy*dy+dz*dz)<maxCollDist) 	list.Add(iCell, jCell);
+						}
+					}
+				}
+			});
+		}
+		Run(pool, taskArray);
+		pairs.Clear();
+		for(PairList list : brutePairs) {
+			for(int ii=0; ii<list.N; ii++) 	pairs.Add(list.cell0[ii], list.cell1[ii]);
+		}
+		return pairs;
+	}
+
+	Scratch[] TaskScratch(int NTask) {
+		if(taskScratch.length!=NTask) {
+			taskScratch = new Scratch[NTask];
+			for(int iTask=0; iTask<NTask; iTask++) 	taskScratch[iTask] = new Scratch();
+		}
+		return taskScratch;
+	}
+
+	static int Start(int N, int iTask, int NTask) {		// First of the N items for task iTask
+		return (int)((long)N*iTask/NTask);
+	}
+
+	static void Run(ForkJoinPool pool, ArrayList<RecursiveAction> taskArray) {
+		for(RecursiveAction task : taskArray) 	pool.execute(task);
+		for(RecursiveAction task : taskArray) 	task.join();
+	}
+
+	void BallForce(int ii) {			// Normal force, gravity and buoyancy, electrostatic attraction and damping
+		BodyForce(ii);
+		force[3*ii  ] = force[3*ii  ] - vel[3*ii  ]*model.Kd;
+		force[3*ii+1] = force[3*ii+1] - vel[3*ii+1]*model.Kd;
+		force[3*ii+2] = force[3*ii+2] - vel[3*ii+2]*model.Kd;
+	}
+
+	void BodyForce(int ii) {			// BallForce() without damping
+		double zPos = pos[3*ii+2];
+		double r = radius[ii];
+		if(model.normalForce) {
+			if(zPos<r){
+				force[3*ii+2] += model.Kw*(r-zPos);
+			}
+		}
+		if(model.gravity) {
+			if(model.gravityZ) {
+				force[3*ii+2] += weight[ii];
+			} else if(zPos>r*1.1) {			// Only if not already at the floor plus a tiny bit
+				force[3*ii+2] += weight[ii];
+			}
+		}
+		if(model.electrostatic) {
+			double d = (zPos-r);
+			double dlim = model.dlimFactor*(1.0/model.kappa);
+			d = Math.max(d, dlim);
+			force[3*ii+2] += model.kappa*model.Ces*Math.exp(-model.kappa*d) - model.Cvdw/(d*d);
+		}
+	}
+
+	void Spring(double[] force, Scratch S, int ii) {
+		springs.Force(pos, ii, S.force, 0);
+		Add(force, springs.ball0[ii], S.force[0], S.force[1], S.force[2]);
+		if(springs.ball1[ii]>=0) 	Subtract(force, springs.ball1[ii], S.force[0], S.force[1], S.force[2]);
+	}
+
+	/////////////////////////////////////////////////////
+
+	void CollisionsBruteForce(double[] force, Scratch S, int start, int step) {		// All pairs with cells start, start+step, ... as the first cell. Same cut-off as in RelaxationODE
+		final double maxCollDist = (Common.maxArray(model.lengthCellMax) + Common.maxArray(model.radiusCellMax) * 2.0) * 2.0;
+		for(int iCell=start; iCell<NCell; iCell+=step) {
+			int i0 = 3*cellBall0[iCell];
+			for(int jCell=iCell+1; jCell<NCell; jCell++) {
+				int i1 = 3*cellBall0[jCell];
+				double dx = pos[i0]-pos[i1], dy = pos[i0+1]-pos[i1+1], dz = pos[i0+2]-pos[i1+2];
+				if(Math.sqrt(dx*dx+dy*dy+dz*dz)<maxCollDist) 	Collision(force, S, iCell, jCell);
+			}
+		}
+	}
+
+	PairList FindPairs() {				// Candidate collision pairs from the neighbour list or broadphase
+		if(model.neighbourList) {
+			if(neighbourList==null)		neighbourList = new NeighbourList(model.neighbourSkin);
+			neighbourList.Update(this, radiusModifier);
+			return neighbourList.pairs;
+		}
+		if(box.length < 6*NCell)		box = new double[6*NCell];
+		CellBoxes(radiusModifier, 0.0, box);
+		if(broadphase==null)		broadphase = Broadphase.Create(model, 0.0);
+		broadphase.FindPairs(box, NCell, pairs);
+		return pairs;
+	}
+
+	public void CellBoxes(double radiusFactor, double margin, double[] box) {	// Same as CollisionGrid.CellBox() for all cells, from pos
+		for(int iCell=0; iCell<NCell; iCell++) {
+			int i0 = 3*cellBall0[iCell], i1 = 3*cellBall1[iCell];
+			double r = radius[cellBall0[iCell]]*radiusFactor + margin;
+			int o = 6*iCell;
+			box[o  ] = Math.min(pos[i0  ], pos[i1  ]) - r;
+			box[o+1] = Math.min(pos[i0+1], pos[i1+1]) - r;
+			box[o+2] = Math.min(pos[i0+2], pos[i1+2]) - r;
+			box[o+3] = Math.max(pos[i0  ], pos[i1  ]) + r;
+			box[o+4] = Math.max(pos[i0+1], pos[i1+1]) + r;
+			box[o+5] = Math.max(pos[i0+2], pos[i1+2]) + r;
+		}
+	}
+
+	void SphereContacts(double[] force, Scratch S, PairList pairs, int start, int end) {		// Same as Collision() for pairs start to end-1, if all cells are spheres. Works on batches: gather the pairs, compute the overlaps in a simple loop over arrays that the JIT can turn into SIMD instructions, then add the forces of overlapping pairs
+		final double Kc = model.Kc;
+		final double[] dx = S.dx, dy = S.dy, dz = S.dz, dist = S.dist, d = S.d;
+		for(int batch=start; batch<end; batch+=Scratch.NBatch) {
+			final int N = Math.min(Scratch.NBatch, end-batch);
+			for(int kk=0; kk<N; kk++) {
+				int b0 = cellBall0[pairs.cell0[batch+kk]], b1 = cellBall0[pairs.cell1[batch+kk]];
+				int i0 = 3*b0, i1 = 3*b1;
+				dx[kk] = pos[i0  ]-pos[i1  ];
+				dy[kk] = pos[i0+1]-pos[i1+1];
+				dz[kk] = pos[i0+2]-pos[i1+2];
+				d[kk] = radius[b0] + radius[b1];
+			}
+			for(int kk=0; kk<N; kk++) {
+				dist[kk] = Math.sqrt(dx[kk]*dx[kk]+dy[kk]*dy[kk]+dz[kk]*dz[kk]);
+				d[kk] = d[kk]*radiusModifier - dist[kk];
+			}
+			for(int kk=0; kk<N; kk++) {
+				if(d[kk]>0.0) {
+					double Kd = Kc*d[kk];
+					double Fx = dx[kk]/dist[kk]*Kd, Fy = dy[kk]/dist[kk]*Kd, Fz = dz[kk]/dist[kk]*Kd;
+					int i0 = 3*cellBall0[pairs.cell0[batch+kk]], i1 = 3*cellBall0[pairs.cell1[batch+kk]];
+					force[i0  ] = force[i0  ] + Fx;		force[i0+1] = force[i0+1] + Fy;		force[i0+2] = force[i0+2] + Fz;
+					force[i1  ] = force[i1  ] - Fx;		force[i1+1] = force[i1+1] - Fy;		force[i1+2] = force[i1+2] - Fz;
+				}
+			}
+		}
+	}
+
+	void Collision(double[] force, Scratch S, int iCell, int jCell) {		// Narrowphase: adds the collision force between two cells, if they overlap. Same arithmetic as RelaxationODE.CollisionForce()
+		int N = Contact(S.E, iCell, jCell, S.ball, S.force, 0);
+		for(int kk=0; kk<N; kk++) 	Add(force, S.ball[kk], S.force[3*kk], S.force[3*kk+1], S.force[3*kk+2]);
+	}
+
+	int Contact(ericson.Result E, int iCell, int jCell, int[] ball, double[] F, int o) {		// Collision force between two cells. Returns the number of balls it acts on, 0 if the cells don't overlap. Writes the balls to ball[o], ball[o+1], ... and the forces on them to F[3*o], F[3*o+1], ...
+		int shape0 = cellShape[iCell];
+		int shape1 = cellShape[jCell];
+		int b00 = cellBall0[iCell], b10 = cellBall0[jCell];
+		double R2 = radius[b00] + radius[b10];
+		if(shape0==0 && shape1==0) {
+			int i0 = 3*b00, i1 = 3*b10;
+			double dx = pos[i0]-pos[i1], dy = pos[i0+1]-pos[i1+1], dz = pos[i0+2]-pos[i1+2];
+			double dist = Math.sqrt(dx*dx+dy*dy+dz*dz);
+			double d = R2*radiusModifier - dist;
+			if(d>0.0) {
+				double Kd = model.Kc*d;
+				double Fx = dx/dist*Kd, Fy = dy/dist*Kd, Fz = dz/dist*Kd;
+				Set(ball, F, o  , b00,  Fx,  Fy,  Fz);
+				Set(ball, F, o+1, b10, -Fx, -Fy, -Fz);
+				return 2;
+			}
+		} else if((shape0==1 || shape0==2) && (shape1==1 || shape1==2)) {
+			int b01 = cellBall1[iCell], b11 = cellBall1[jCell];
+			ericson.DetectCollision.LinesegLineseg(pos, 3*b00, 3*b01, 3*b10, 3*b11, E);
+			double d = R2*radiusModifier - E.dist;
+			if(d>0.0) {
+				double f = model.Kc/E.dist*d;
+				double Fx = E.dPx*f, Fy = E.dPy*f, Fz = E.dPz*f;
+				double sc = E.sc, tc = E.tc;
+				double sc1 = 1-sc;
+				double tc1 = 1-tc;
+				Set(ball, F, o  , b00, Fx*sc1, Fy*sc1, Fz*sc1);
+				Set(ball, F, o+1, b01, Fx*sc, Fy*sc, Fz*sc);
+				Set(ball, F, o+2, b10, -(Fx*tc1), -(Fy*tc1), -(Fz*tc1));		// Adding the negative is the same as subtracting, bit for bit
+				Set(ball, F, o+3, b11, -(Fx*tc), -(Fy*tc), -(Fz*tc));
+				return 4;
+			}
+		} else if(shape0==1 || shape0==2 || shape1==1 || shape1==2) {
+			int sphere, rod0, rod1;
+			if(shape0==0) {
+				sphere = b00;		rod0 = b10;		rod1 = cellBall1[jCell];
+			} else {
+				sphere = b10;		rod0 = b00;		rod1 = cellBall1[iCell];
+			}
+			ericson.DetectCollision.LinesegPoint(pos, 3*rod0, 3*rod1, 3*sphere, E);
+			double d = R2*radiusModifier - E.dist;
+			if(d>0.0) {
+				double f = model.Kc/E.dist*d;
+				double Fx = E.dPx*f, Fy = E.dPy*f, Fz = E.dPz*f;
+				double sc = E.sc;
+				Set(ball, F, o  , sphere, -Fx, -Fy, -Fz);
+				Set(ball, F, o+1, rod0, Fx*(1.0-sc), Fy*(1.0-sc), Fz*(1.0-sc));
+				Set(ball, F, o+2, rod1, Fx*sc, Fy*sc, Fz*sc);
+				return 3;
+			}
+		} else {
+			throw new RuntimeException("Unknown cell type");
+		}
+		return 0;
+	}
+
+	static void Set(int[] ball, double[] F, int o, int b, double Fx, double Fy, double Fz) {
+		ball[o] = b;
+		F[3*o  ] = Fx;
+		F[3*o+1] = Fy;
+		F[3*o+2] = Fz;
+	}
+
+	void Add(double[] force, int ball, double Fx, double Fy, double Fz) {
+		force[3*ball  ] = force[3*ball  ] + Fx;
+		force[3*ball+1] = force[3*ball+1] + Fy;
+		force[3*ball+2] = force[3*ball+2] + Fz;
+	}
+
+	void Subtract(double[] force, int ball, double Fx, double Fy, double Fz) {
+		force[3*ball  ] = force[3*ball  ] - Fx;
+		force[3*ball+1] = force[3*ball+1] - Fy;
+		force[3*ball+2] = force[3*ball+2] - Fz;
+	}
+
+	static class Scratch {				// Per thread: closest points and the forces of one contact or spring, batches for SphereContacts()
+		static final int NBatch = 256;
+		ericson.Result E = new ericson.Result();
+		int[] ball = new int[4];
+		double[] force = new double[12];
+		double[] dx = new double[NBatch], dy = new double[NBatch], dz = new double[NBatch], dist = new double[NBatch], d = new double[NBatch];
+	}
+}
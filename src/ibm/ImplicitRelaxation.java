@@ -0,0 +1,170 @@
+package ibm;
+
+import java.util.Arrays;
+
+public class ImplicitRelaxation {		// Backward Euler for the relaxation ODE, stable for stiff springs, collisions and DLVO forces. Newton iterations with a matrix-free Krylov solver (GMRES): the Jacobian is only applied, as a directional difference of the derivatives
+	Model model;
+	RelaxationODE ode;
+	int N;
+	double[] y0, f0, f, s, g, u, yp, fp, w;		// s is the error scale of each value, g and u are Newton residual and update in units of s
+	double[] absTol, relTol;
+	double[][] V, H;							// Krylov basis and Hessenberg matrix
+	double[] cs, sn, gk;						// Givens rotations and rotated right hand side
+	static final int NKrylovMax = 30;			// Krylov vectors per linear solve, no restarts. Newton corrects what is left
+	static final int NNewtonMax = 8;
+	static final double newtonTol = 0.1;		// Newton has converged once its update is this fraction of the error scale
+	static final double krylovTol = 0.01;		// Relative residual of the linear solve
+	public int NNewton, NKrylov, NReject;
+
+	///////////////////////////////////////////////////////////////////
+
+	public ImplicitRelaxation(Model model, RelaxationODE ode) {
+		this.model = model;
+		this.ode = ode;
+		N = ode.getDimension();
+		y0 = new double[N];		f0 = new double[N];		f = new double[N];		s = new double[N];
+		g = new double[N];		u = new double[N];		yp = new double[N];		fp = new double[N];		w = new double[N];
+		V = new double[NKrylovMax+1][N];
+		H = new double[NKrylovMax+1][NKrylovMax];
+		cs = new double[NKrylovMax];	sn = new double[NKrylovMax];	gk = new double[NKrylovMax+1];
+		absTol = new double[N];		relTol = new double[N];
+		ode.Tolerances(absTol, relTol);
+	}
+
+	public void Integrate(double[] y, double tEnd) {		// Integrates y from 0 to tEnd. Calls model.RelaxationStep() after each step, as the DormandPrince54Integrator step handler does. Takes large steps where springs or collisions are stiff. Best with model.overdamped: Newton needs smooth forces, and gravity switches off below 1.1 radius
+		double t = 0.0;
+		double h = tEnd/16.0;
+		ode.computeDerivatives(t, y, f);
+		boolean last = false;
+		while(!last) {
+			last = t+h >= tEnd;
+			if(last) 	h = tEnd-t;
+			System.arraycopy(y, 0, y0, 0, N);
+			System.arraycopy(f, 0, f0, 0, N);
+			for(int ii=0; ii<N; ii++) 	s[ii] = absTol[ii] + relTol[ii]*Math.abs(y0[ii]);		// Same tolerances as the explicit solver
+			double err = Step(t, h, y) ? Error(h) : Double.POSITIVE_INFINITY;
+			if(err<=1.0) {
+				model.RelaxationStep(ode, h, last);	// The last evaluation was at y, so the Ball objects are up to date
+				t = last ? tEnd : t+h;
+				ode.computeDerivatives(t, y, f);	// Springs may have changed
+				h *= Math.min(4.0, 0.9/Math.sqrt(Math.max(err, 1e-4)));
+			} else {
+				NReject++;
+				last = false;
+				System.arraycopy(y0, 0, y, 0, N);
+				h *= Double.isInfinite(err) ? 0.25 : Math.max(0.2, 0.9/Math.sqrt(err));
+				if(h < 1e-12*tEnd) 	throw new RuntimeException("Implicit relaxation step size " + h + " s too small at t = " + t + " s");
+			}
+		}
+	}
+
+	boolean Step(double t, double h, double[] y) {		// Solves y = y0 + h*f(y) by Newton iteration with a line search, starting from y0. Leaves f = f(y). Returns false if Newton did not converge
+		System.arraycopy(f0, 0, f, 0, N);
+		double norm = Residual(h, y, f, g);
+		if(norm<=newtonTol) {					// Hardly moves, keep y0
+			ode.computeDerivatives(t+h, y, f);	// The Ball objects follow the last evaluation
+			return true;
+		}
+		for(int iNewton=0; iNewton<NNewtonMax; iNewton++) {
+			Gmres(t+h, h, y);
+			NNewton++;
+			double lambda = 1.0, trial;
+			while(true) {						// Contacts make the forces only piecewise smooth, so a full Newton step may overshoot
+				for(int ii=0; ii<N; ii++) 	yp[ii] = y[ii] + lambda*s[ii]*u[ii];
+				ode.computeDerivatives(t+h, yp, fp);
+				trial = Residual(h, yp, fp, w);
+				if(trial < (1.0-1e-4*lambda)*norm) 	break;
+				lambda *= 0.5;
+				if(lambda<1.0/16.0) 	return false;
+			}
+			System.arraycopy(yp, 0, y, 0, N);
+			System.arraycopy(fp, 0, f, 0, N);
+			System.arraycopy(w, 0, g, 0, N);
+			norm = trial;
+			if(norm<=newtonTol || lambda*Rms(u)<=newtonTol) 	return true;
+		}
+		return false;
+	}
+
+	double Residual(double h, double[] y, double[] f, double[] g) {		// g = -(y - y0 - h*f) in units of s. Returns its RMS, infinite if f is not a number
+		for(int ii=0; ii<N; ii++) {
+			if(Double.isNaN(f[ii])) 	return Double.POSITIVE_INFINITY;
+			g[ii] = -(y[ii] - y0[ii] - h*f[ii])/s[ii];
+		}
+		return Rms(g);
+	}
+
+	double Error(double h) {			// Local error of backward Euler, h/2*(f1 - f0), of the positions only. The velocities settle within a few drag times, their transient need not be resolved
+		int NPerBall = model.overdamped ? 3 : 6;
+		double sum = 0.0;
+		for(int ii=0; ii<N; ii++) {
+			if(ii%NPerBall>=3) 		continue;
+			double e = 0.5*h*(f[ii]-f0[ii])/s[ii];
+			sum += e*e;
+		}
+		return N==0 ? 0.0 : Math.sqrt(sum/(3*N/NPerBall));
+	}
+
+	void Apply(double t, double h, double[] y, double[] v, double[] Av) {		// Av = (I - h*J)*v in units of s, J by a directional difference of the derivatives at y (f holds f(y))
+		double yNorm = 0.0;
+		for(int ii=0; ii<N; ii++) 	yNorm += (y[ii]/s[ii])*(y[ii]/s[ii]);
+		double eps = 1e-8*(1.0+Math.sqrt(yNorm));				// v has unit norm
+		for(int ii=0; ii<N; ii++) 	yp[ii] = y[ii] + eps*s[ii]*v[ii];
+		ode.computeDerivatives(t, yp, fp);
+		for(int ii=0; ii<N; ii++) 	Av[ii] = v[ii] - h*(fp[ii]-f[ii])/(eps*s[ii]);
+	}
+
+	void Gmres(double t, double h, double[] y) {		// Solves (I - h*J)*u = g, starting from u = 0
+		Arrays.fill(u, 0.0);
+		double beta = Norm(g);
+		if(beta==0.0) 	return;
+		for(int ii=0; ii<N; ii++) 	V[0][ii] = g[ii]/beta;
+		Arrays.fill(gk, 0.0);
+		gk[0] = beta;
+		int k = 0;
+		while(k<NKrylovMax) {
+			Apply(t, h, y, V[k], w);
+			NKrylov++;
+			for(int ii=0; ii<=k; ii++) {			// Modified Gram-Schmidt
+				H[ii][k] = Dot(w, V[ii]);
+				for(int jj=0; jj<N; jj++) 	w[jj] -= H[ii][k]*V[ii][jj];
+			}
+			H[k+1][k] = Norm(w);
+			for(int ii=0; ii<k; ii++) {				// Previous rotations on the new column
+				double temp = cs[ii]*H[ii][k] + sn[ii]*H[ii+1][k];
+				H[ii+1][k] = -sn[ii]*H[ii][k] + cs[ii]*H[ii+1][k];
+				H[ii][k] = temp;
+			}
+			double r = Math.hypot(H[k][k], H[k+1][k]);
+			cs[k] = H[k][k]/r;
+			sn[k] = H[k+1][k]/r;
+			H[k][k] = r;
+			double breakdown = H[k+1][k];
+			H[k+1][k] = 0.0;
+			gk[k+1] = -sn[k]*gk[k];
+			gk[k] = cs[k]*gk[k];
+			k++;
+			if(Math.abs(gk[k]) <= krylovTol*beta || breakdown==0.0) 	break;
+			if(k<NKrylovMax) 	for(int ii=0; ii<N; ii++) 	V[k][ii] = w[ii]/breakdown;
+		}
+		for(int ii=k-1; ii>=0; ii--) {				// Back substitution, coefficients in gk
+			for(int jj=ii+1; jj<k; jj++) 	gk[ii] -= H[ii][jj]*gk[jj];
+			gk[ii] /= H[ii][ii];
+		}
+		for(int ii=0; ii<k; ii++) 	for(int jj=0; jj<N; jj++) 	u[jj] += gk[ii]*V[ii][jj];
+	}
+
+	double Dot(double[] a, double[] b) {
+		double sum = 0.0;
+		for(int ii=0; ii<N; ii++) 	sum += a[ii]*b[ii];
+		return sum;
+	}
+
+	double Norm(double[] a) {
+		return Math.sqrt(Dot(a, a));
+	}
+
+	double Rms(double[] a) {
+		return N==0 ? 0.0 : Norm(a)/Math.sqrt(N);
+	}
+}
@@ -105,8 +105,9 @@ public class Interface{
 			}
 			model = Load(loadName);
 			model.Write("Loaded " + loadName, "");
-			// Check if we are loading a simulation that has finished the relaxation step.  
-			if(model.growthIter*(int)(model.relaxationTimeStep/model.relaxationTimeStepdt) != model.relaxationIter) {
+			// Check if we are loading a simulation that has finished the relaxation step. The number of relaxation iterations is only fixed if relaxation cannot stop early or be extended  
+			boolean fixedIter = !model.relaxationStop && model.allowOverlap && model.allowMovement;
+			if(model.relaxationBusy || (fixedIter && model.growthIter*(int)(model.relaxationTimeStep/model.relaxationTimeStepdt) != model.relaxationIter)) {
 				model.Write("Relaxation was not finished in the loaded simulation, specify file to be loaded manually","error");
 			}
 		}
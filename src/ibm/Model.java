@@ -11,6 +11,10 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.math3.ode.FirstOrderIntegrator;
@@ -29,6 +33,7 @@ public class Model implements Serializable {
 	public String name = "default";
 	public int simulation = 0;					// The simulation type: see Run
 	public int randomSeed = 1;
+	public int NThread = 0;						// Number of threads for the parallel parts of the model. 0 == number of available processors
 	// Domain properties
 	public Vector3d L 	= new Vector3d(2e-6, 2e-6, 2e-6); 	// Used only in COMSOL simulations
 	public Vector3d Linit = new Vector3d(1e-6, 1e-6, 1e-6); // Used to generate cell inoculum
@@ -115,6 +120,11 @@ public class Model implements Serializable {
 	public int relaxationIterSuccessiveMax = 0;	// [-] how many successive iterations we limit relaxation to
 	public boolean allowMovement = true;				// Whether we allow cells to continue moving or we keep relaxing them until relaxationIterSuccessiveMax is reached
 	public boolean allowOverlap = true;			// Whether we allow cells to overlap or we keep relaxing them until relaxationIterSuccessiveMax is reached 
+	public boolean relaxationStop = false;		// Stop relaxing once the colony is at rest, i.e. overlap, ball speed and kinetic energy are below the limits below
+	public double relaxationOverlapLim = 0.01e-6;	// [m] Largest overlap between cells that counts as at rest, also for allowOverlap
+	public double relaxationSpeedLim = 1e-6;	// [m/s] Largest ball speed that counts as at rest, also for allowMovement
+	public double relaxationEnergyLim = 1e-31;	// [J] Largest mean kinetic energy per ball that counts as at rest, also for allowMovement
+	public boolean relaxationBusy = false;		// True while Relaxation(int, RelaxationOutput) has intervals left, e.g. in files saved during relaxation
 	public int relaxationIterMax = Integer.MAX_VALUE;	// [-] Number of iterations before model is finished
 	// Arrays
 	public ArrayList<Cell> cellArray = new ArrayList<Cell>(NCellInit);
@@ -125,6 +135,49 @@ public class Model implements Serializable {
 	public ArrayList<AnchorSpring> anchorSpringArray = new ArrayList<AnchorSpring>(0);
 	// ODE settings
 	public double ODETol = 1e-7;
+	public boolean relaxationScaling = false;	// Error control of the relaxation solvers per state value in characteristic units instead of ODETol for all: positions in the mean ball radius, velocities in that radius per relaxationTimeStepdt. Forces are not part of the state. See RelaxationODE.Tolerance()
+	public double relaxationScaledTol = 1e-2;	// [-] Tolerance in those units, for relaxationScaling
+	public boolean relaxationSession = false;	// Relax the whole relaxationTimeStep in one solver run, with output at each relaxationTimeStepdt by interpolation. Otherwise the solver restarts every relaxationTimeStepdt. Only for relaxationSolver == 0
+	public int relaxationSolver = 0;			// 0 == DP54, 1 == implicit, 2 == r-RESPA, 3 == FIRE, 4 == projection, see the classes
+	public double respaTimeStep = 2e-4;			// [s] Outer step of relaxationSolver 2, for contact, wall, gravity and electrostatic forces
+	public int respaNInner = 4;					// Inner steps per outer step of relaxationSolver 2, for springs and damping
+	public double fireForceTol = 1e-19;			// [N] Largest ball force at which relaxationSolver 3 has converged, about Kc times 1 nm overlap
+	public int fireNStepMax = 100000;			// [-] Steps per Relaxation() before relaxationSolver 3 gives up
+	public double projectionTol = 1e-9;			// [m] relaxationSolver 4 stops once no ball moved more than this in a sweep
+	public int projectionNSweepMax = 200;		// [-] Sweeps over all constraints per Relaxation() of relaxationSolver 4
+	public boolean projectionJacobi = false;	// relaxationSolver 4: Jacobi sweeps split over NThread threads instead of Gauss-Seidel. Needs more sweeps, last digits depend on NThread
+	public boolean rodConstraint = false;		// Keep each rod at its rest length as a constraint (SHAKE/RATTLE projection) instead of with the stiff RodSpring, so Kr no longer limits the step size. The rest length still follows Cell.SetAmount(). Needs forceKernel. relaxationSolver 4 always treats rods like this
+	public double rodConstraintRate = 1000.0;	// [1/s] How fast rodConstraint pulls a rod that drifted from its rest length back, for relaxationSolver 0 and 1. DP54 lets positions drift by about ODETol per step, so about the inverse step size. Much higher is stiff again
+	public boolean rigidRods = false;			// Relax each rod cell as one rigid capsule (centre of mass, direction, length) with force and torque instead of two balls and a RodSpring. Balls are still what is saved. Only relaxationSolver 0, see RigidRodODE
+	public int broadphase = 1;					// Collision pair search in relaxation: 0 == brute force (all pairs, reference), 1 == uniform grid, 2 == dynamic AABB tree (for very different cell sizes), 3 == sweep and prune
+	public boolean forceKernel = true;			// Compute relaxation forces on flat arrays instead of the Ball and Cell objects. Same results, faster
+	public int parallelForce = 0;				// Relaxation forces: 0 == serial, 1 == split over NThread threads that each sum into their own buffer (summation order, and so the last digits, depend on NThread), 2 == parallel, but bit for bit the same as serial for any NThread. Needs forceKernel
+	public boolean overdamped = false;			// Relaxation without inertia: velocity = force/Kd, so only positions are integrated. See OverdampedODE
+	public boolean sphereKernel = true;			// Batched contact forces if all cells are spheres, e.g. AOM. Same results
+	public boolean neighbourList = true;		// Reuse broadphase pairs over solver steps (Verlet list). Not used with brute force
+	public double neighbourSkin = 0.1e-6;		// [m] Margin for the neighbour list. List is rebuilt once a ball moved more than half of this
+	public double treeMargin = 0.1e-6;			// [m] Margin of the fat boxes in the AABB tree. A cell is only reinserted once it moved out of its fat box
+	public int formBreakPolicy = 0;				// When relaxation checks springs with FormBreak(): 0 == after every solver step, 1 == every formBreakNStep steps, 2 == every formBreakTime of simulated time. Always at the end of each relaxationTimeStepdt
+	public int formBreakNStep = 10;				// [-] Solver steps between checks for formBreakPolicy 1
+	public double formBreakTime = 0.01;			// [s] Simulated time between checks for formBreakPolicy 2
+	public double formBreakDisplacement = 0.05e-6;	// [m] With formBreakPolicy 1 or 2, also check as soon as a ball moved this far since the last check. 0 == off
+	public boolean overlapCheck = false;		// Warn about overlapping cells after each relaxation step. Always done in RunComsol
+	private transient AABBTree collisionTree;	// Built on first use, kept up to date as cells are created and removed
+	private transient CollisionGrid stickGrid;	// Broadphase for sticking spring formation, see FormBreak()
+	private transient AABBTree stickTree;		// Same with broadphase 2. Not the collision tree, whose fat boxes would grow to the larger boxes used there
+	private transient PairList stickPairs;
+	private transient double[] stickBox;
+	private transient SweepAndPrune sweep;		// Broadphase for DetectCollisionCellPairs(), see Sweep()
+	private transient PairList overlapCandidate;
+	private transient double[] overlapBox;
+	private transient double[] nearbyBox;		// Scratch for DetectCollisionNearby()
+	private transient ArrayList<Cell> nearbyCandidate;
+	private transient ForkJoinPool pool;			// Threads for parallel parts, see Pool()
+	private transient ericson.Result closest;	// Scratch for the distance between cells, see Closest()
+	private transient double relaxationStepSize;	// [s] Last solver step of Relaxation(int, RelaxationOutput), used as first step of the next if cellVersion did not change since
+	private transient int relaxationStepCellVersion;
+	private transient int cellVersion;			// Changed whenever a cell is created or removed, see CellCreated() and CellRemoved()
+	private transient int springVersion;		// Changed whenever a spring is formed, broken or reset, see SpringsChanged()
 	// === AS STUFF ===
 	public int flocF = -1;
 	public int filF = -1;
@@ -219,9 +272,53 @@ public class Model implements Serializable {
 		Write(message,format,false,false);
 	}
 	
+	ForkJoinPool Pool() {						// Thread pool with NThread threads, created on first use
+		int N = NThread>0 ? NThread : Runtime.getRuntime().availableProcessors();
+		if(pool==null || pool.getParallelism()!=N) {
+			if(pool!=null)		pool.shutdown();
+			pool = new ForkJoinPool(N);
+		}
+		return pool;
+	}
+	
+	void SpringsChanged() {						// Called by the springs themselves. Makes the relaxation copy them again, see SpringTable
+		springVersion++;
+	}
+	
+	int SpringVersion() {
+		return springVersion;
+	}
+	
+	ericson.Result Closest() {					// Reusable result for ericson.DetectCollision, not for use in parallel parts
+		if(closest==null)		closest = new ericson.Result();
+		return closest;
+	}
+	
 	//////////////////////////
 	// Collision detection  //
 	//////////////////////////
+	public AABBTree CollisionTree() {
+		if(collisionTree==null)		collisionTree = new AABBTree(this, treeMargin);
+		return collisionTree;
+	}
+	
+	SweepAndPrune Sweep() {
+		if(sweep==null)		sweep = new SweepAndPrune();
+		return sweep;
+	}
+	
+	void CellCreated(Cell cell) {				// Called by the cell itself. Does nothing to the tree if it was not built yet
+		cellVersion++;
+		if(collisionTree!=null)		collisionTree.Insert(cell);
+		if(stickTree!=null)			stickTree.Insert(cell);
+	}
+	
+	void CellRemoved(Cell cell) {				// Called by the cell itself
+		cellVersion++;
+		if(collisionTree!=null)		collisionTree.Remove(cell);
+		if(stickTree!=null)			stickTree.Remove(cell);
+	}
+	
 	public ArrayList<Cell> DetectFloorCollision(double touchFactor) {				// actual distance < dist*radius--> collision    
 		ArrayList<Cell> collisionCell = new ArrayList<Cell>();
 		for(Cell cell : cellArray) {
@@ -244,20 +341,35 @@ public class Model implements Serializable {
 	
 	public ArrayList<Cell> DetectCollisionCellArray(double touchFactor) {
 		ArrayList<Cell> collisionCell = new ArrayList<Cell>();
-		int NCell = cellArray.size();
-		for(int ii=0; ii<NCell; ii++) {
-			Cell cell0 = cellArray.get(ii);
-			for(int jj=ii+1; jj<NCell; jj++) {
-				Cell cell1 = cellArray.get(jj);
-				if(DetectCollisionCellCell(cell0, cell1, touchFactor)){
-					collisionCell.add(cell0);
-					collisionCell.add(cell1);
-				}
-			}
+		PairList pairs = DetectCollisionCellPairs(touchFactor);
+		for(int iPair=0; iPair<pairs.N; iPair++) {
+			collisionCell.add(cellArray.get(pairs.cell0[iPair]));
+			collisionCell.add(cellArray.get(pairs.cell1[iPair]));
 		}
 		return collisionCell;
 	}
 	
+	public PairList DetectCollisionCellPairs(double touchFactor) {		// Indices of all colliding cells, in the same order as a double loop over all cells. Candidates come from a sort and sweep of the cell boxes
+		int NCell = cellArray.size();
+		if(overlapBox==null || overlapBox.length < 6*NCell) 	overlapBox = new double[6*NCell];
+		if(overlapCandidate==null) 		overlapCandidate = new PairList();
+		for(int ii=0; ii<NCell; ii++) 	CollisionGrid.CellBox(cellArray.get(ii), touchFactor, 0.0, overlapBox, 6*ii);
+		Sweep().FindPairs(overlapBox, NCell, overlapCandidate);
+		PairList pairs = new PairList();
+		for(int iPair=0; iPair<overlapCandidate.N; iPair++) {
+			int ii = overlapCandidate.cell0[iPair];
+			int jj = overlapCandidate.cell1[iPair];
+			if(DetectCollisionCellCell(cellArray.get(ii), cellArray.get(jj), touchFactor)) 	pairs.Add(ii, jj);
+		}
+		return pairs;
+	}
+	
+	public String CollisionString(PairList pairs) {		// Lists the indices of the colliding cells, for warnings
+		String collisionString = "";
+		for(int iPair=0; iPair<pairs.N; iPair++) 	collisionString += pairs.cell0[iPair] + " " + pairs.cell1[iPair] + " ";
+		return collisionString;
+	}
+	
 	public boolean DetectCollisionCellCell(Cell cell0, Cell cell1, double touchFactor) {
 		int shape0 = this.shapeX[cell0.type];
 		int shape1 = this.shapeX[cell1.type];
@@ -278,23 +390,25 @@ public class Model implements Serializable {
 				H2 = 1.5*(touchFactor*( lengthCellMax[cell0.type] + lengthCellMax[cell1.type] + R2 ));		// Does not take stretching of the rod spring into account, but should do the trick still
 				if(Math.abs(diff.x)<H2 && Math.abs(diff.y)<H2 && Math.abs(diff.z)<H2) {
 					// Do good collision detection
-					ericson.ReturnObject C = ericson.DetectCollision.LinesegLineseg(cell0.ballArray[0].pos, cell0.ballArray[1].pos, cell1.ballArray[0].pos, cell1.ballArray[1].pos);
+					ericson.Result C = Closest();
+					ericson.DetectCollision.LinesegLineseg(cell0.ballArray[0].pos, cell0.ballArray[1].pos, cell1.ballArray[0].pos, cell1.ballArray[1].pos, C);
 					dist = C.dist;							// Then check if dist is small enough (end of method)
 				} else {
 					return false;							// Not close enough, won't overlap
 				}
-			} else if(shape0<2 && shape1<2) {				// Rod-sphere
+			} else if((shape0==0 && (shape1==1 || shape1==2)) || ((shape0==1 || shape0==2) && shape1==0)) {	// Rod-sphere
 				if(shape0==1 || shape0==2) {
-					rod=cell1;
-					sphere=cell0;
-				} else {
 					rod=cell0;
 					sphere=cell1;
+				} else {
+					rod=cell1;
+					sphere=cell0;
 				}
 				H2 = 1.5*(touchFactor*( lengthCellMax[rod.type] + R2 ));// H2 is maximum allowed distance with still change to collide: R0 + R1 + 2*R1*aspect
 				if(Math.abs(diff.x)<H2 && Math.abs(diff.z)<H2 && Math.abs(diff.y)<H2) {
 					// Do good collision detection
-					ericson.ReturnObject C = ericson.DetectCollision.LinesegPoint(rod.ballArray[0].pos, rod.ballArray[1].pos, sphere.ballArray[0].pos);
+					ericson.Result C = Closest();
+					ericson.DetectCollision.LinesegPoint(rod.ballArray[0].pos, rod.ballArray[1].pos, sphere.ballArray[0].pos, C);
 					dist = C.dist;							// Then check if dist is small enough (end of method)
 				} else {
 					return false;							// Not close enough, won't overlap
@@ -358,49 +472,55 @@ public class Model implements Serializable {
 	//////////////////////
 	// Relaxation stuff //
 	//////////////////////
+	RelaxationODE RelaxationODE() {							// The ODE for the current settings. Solvers 0 and 1 without forceKernel compute forces on the Ball and Cell objects, which know no rod constraint or threads
+		if(!forceKernel && !rigidRods && relaxationSolver<=1) {
+			if(rodConstraint) 		throw new RuntimeException("rodConstraint needs forceKernel");
+			if(parallelForce!=0) 	throw new RuntimeException("parallelForce needs forceKernel");
+		}
+		return rigidRods ? new RigidRodODE(this) : overdamped ? new OverdampedODE(this) : new RelaxationODE(this);
+	}
+	
 	public int[] Relaxation() throws RuntimeException {
-		final FirstOrderIntegrator odeIntegrator = new DormandPrince54Integrator(0, relaxationTimeStepdt, ODETol, ODETol); 	// (minStep, maxStep, absTol, relTol)
-//		final FirstOrderIntegrator odeIntegrator = new MidpointIntegrator(relaxationTimeStepdt/20.0); 											// (stepSize)
-		final RelaxationODE ode = new RelaxationODE(this); 			// Subclass of FirstOrderDifferentialEquations in Apache Commons
-		StepHandler stepHandler = new StepHandler() {
-			public void init(double t0, double[] y0, double t) {}
-			// Let the solver (1) count time steps and (2) form and break springs after each successful iteration
-			public void handleStep(StepInterpolator interpolator, boolean isLast) {
-				int[] springChanges = FormBreak();
-				ode.NStep++;
-				ode.NAnchorForm += springChanges[0]; 
-				ode.NAnchorBreak += springChanges[1];
-				ode.NStickForm += springChanges[2];
-				ode.NStickBreak += springChanges[3];
-				ode.NFilBreak += springChanges[4];
-			}
-		};
-		odeIntegrator.addStepHandler(stepHandler);
-		
+		if(ballArray.isEmpty()) 	return new int[11];		// Nothing to relax, and the solvers cannot size their steps without a state
+		final RelaxationODE ode = RelaxationODE(); 				// Subclass of FirstOrderDifferentialEquations in Apache Commons
 		// Define initial conditions
-		double[] y = new double[ballArray.size()*6];
-		int ii=0;											// Determine initial value vector
-		for(Ball ball : ballArray) { 
-			y[ii++] = ball.pos.x;
-			y[ii++] = ball.pos.y;
-			y[ii++] = ball.pos.z;
-			y[ii++] = ball.vel.x;
-			y[ii++] = ball.vel.y;
-			y[ii++] = ball.vel.z;
-		}
+		if(rodConstraint) 	ProjectRods();
+		double[] y = new double[ode.getDimension()];
+		ode.GetState(y);
 		// Set up solver
-		odeIntegrator.integrate(ode, 0.0, y, relaxationTimeStepdt, y); 	// y will contain solution
-
-		ii = 0; 												// TODO This is probably redundant, already transferred in calculateDerivative 
-		for(Ball ball : ballArray) {
-			ball.pos.x = y[ii++];
-			ball.pos.y = y[ii++];
-			ball.pos.z = y[ii++];
-			ball.vel.x = y[ii++];
-			ball.vel.y = y[ii++];
-			ball.vel.z = y[ii++];
+		if(relaxationSolver==0) {
+			final DormandPrince54Integrator odeIntegrator = RelaxationIntegrator(ode);
+//			final FirstOrderIntegrator odeIntegrator = new MidpointIntegrator(relaxationTimeStepdt/20.0); 										// (stepSize)
+			StepHandler stepHandler = new StepHandler() {
+				public void init(double t0, double[] y0, double t) {}
+				// Let the solver (1) count time steps and (2) form and break springs after each successful iteration
+				public void handleStep(StepInterpolator interpolator, boolean isLast) {
+					RelaxationStep(ode, interpolator.getCurrentTime() - interpolator.getPreviousTime(), isLast);
+					ode.NReject = Rejected(odeIntegrator, overdamped, ode.NStep);
+				}
+			};
+			odeIntegrator.addStepHandler(stepHandler);
+			if(overdamped) 	odeIntegrator.setInitialStepSize(ode.InitialStepSize());
+			odeIntegrator.integrate(ode, 0.0, y, relaxationTimeStepdt, y); 	// y will contain solution
+		} else if(relaxationSolver==1) {
+			ImplicitRelaxation implicit = new ImplicitRelaxation(this, ode);
+			implicit.Integrate(y, relaxationTimeStepdt);
+			ode.NReject = implicit.NReject;
+		} else if(relaxationSolver==2) {
+			new RespaRelaxation(this, ode).Integrate(y, relaxationTimeStepdt);
+		} else if(relaxationSolver==3) {
+			FireRelaxation fire = new FireRelaxation(this, ode);
+			fire.Integrate(y);
+			ode.NReject = fire.NRestart;
+		} else if(relaxationSolver==4) {
+			new ProjectionRelaxation(this, ode).Integrate(y);
+		} else {
+			throw new IndexOutOfBoundsException("Relaxation solver: " + relaxationSolver);
 		}
-		return new int[]{ode.NStep, ode.NAnchorBreak, ode.NAnchorForm, ode.NStickBreak, ode.NStickForm, ode.NFilBreak};
+		ode.Synchronise();
+
+		ode.SetState(y); 										// TODO This is probably redundant, already transferred in calculateDerivative 
+		return new int[]{ode.NStep, ode.NAnchorBreak, ode.NAnchorForm, ode.NStickBreak, ode.NStickForm, ode.NFilBreak, ode.NNeighbourBuild(), ode.NFormBreak, ode.NFormBreakSkip, ode.NFormBreakMoved, ode.NReject};
 //		return new int[]{0,0,0,0,0,0};
 		
 		
@@ -452,48 +572,293 @@ public class Model implements Serializable {
 //		return new int[]{nstp, ode.NAnchorBreak, ode.NAnchorForm, ode.NStickBreak, ode.NStickForm, ode.NFilBreak};
 	}
 	
+	public interface RelaxationOutput {						// See Relaxation(int, RelaxationOutput)
+		public void Output(int[] relaxationOut);
+	}
+	
+	public int[] Relaxation(final int NOutput, final RelaxationOutput output) throws RuntimeException {		// Relaxes for NOutput*relaxationTimeStepdt, or less or more, see RelaxationInterval(). After each relaxationTimeStepdt, advances relaxationIter and relaxationTime and calls output with the Ball objects at that time and the counts of Relaxation() for that interval. Returns the counts summed over all intervals
+		final int NMax = (allowOverlap && allowMovement) ? NOutput : Math.max(NOutput, relaxationIterSuccessiveMax);		// Keep relaxing if overlap or movement remains
+		final int[] sum = new int[11];
+		relaxationBusy = true;
+		if(!relaxationSession || relaxationSolver!=0 || ballArray.isEmpty()) {			// Restart the solver for each interval
+			for(int ir=0; ir<NMax; ir++) {
+				if(RelaxationInterval(ir+1, NOutput, NMax, Relaxation(), sum, output)) 	break;
+			}
+			return sum;
+		}
+		final RelaxationODE ode = RelaxationODE();
+		final DormandPrince54Integrator odeIntegrator = RelaxationIntegrator(ode);
+		final boolean sameCells = relaxationStepSize>0.0 && relaxationStepCellVersion==cellVersion;		// Same cells as in the previous session, so its last step size is a good start. Growth and spring changes in between keep it
+		final boolean initialStepSize = sameCells || overdamped;
+		final int[] previous = new int[11];						// Counts at the previous output
+		StepHandler stepHandler = new StepHandler() {
+			int iOutput = 0;
+			public void init(double t0, double[] y0, double t) {}
+			public void handleStep(StepInterpolator interpolator, boolean isLast) {
+				RelaxationStep(ode, interpolator.getCurrentTime() - interpolator.getPreviousTime(), isLast || (iOutput+1)*relaxationTimeStepdt <= interpolator.getCurrentTime());		// Check springs before each output
+				ode.NReject = Rejected(odeIntegrator, initialStepSize, ode.NStep);
+				if(!isLast) 	relaxationStepSize = interpolator.getCurrentTime() - interpolator.getPreviousTime();		// The last step is cut short at the end time
+				// Output the interpolated state at each output time in this step (dense output)
+				while(iOutput<NMax && ((iOutput+1)*relaxationTimeStepdt <= interpolator.getCurrentTime() || (isLast && iOutput+1==NMax))) {
+					iOutput++;
+					interpolator.setInterpolatedTime(Math.min(iOutput*relaxationTimeStepdt, interpolator.getCurrentTime()));
+					ode.SetState(interpolator.getInterpolatedState());
+					int[] relaxationOut = {ode.NStep, ode.NAnchorBreak, ode.NAnchorForm, ode.NStickBreak, ode.NStickForm, ode.NFilBreak, ode.NNeighbourBuild(), ode.NFormBreak, ode.NFormBreakSkip, ode.NFormBreakMoved, ode.NReject};
+					for(int ii=0; ii<relaxationOut.length; ii++) {
+						int count = relaxationOut[ii];
+						relaxationOut[ii] -= previous[ii];
+						previous[ii] = count;
+					}
+					if(RelaxationInterval(iOutput, NOutput, NMax, relaxationOut, sum, output)) 	throw new RelaxationStop();
+				}
+			}
+		};
+		odeIntegrator.addStepHandler(stepHandler);
+		if(sameCells) 			odeIntegrator.setInitialStepSize(relaxationStepSize);		// Continue with the step size of the previous session
+		else if(overdamped) 	odeIntegrator.setInitialStepSize(ode.InitialStepSize());
+		relaxationStepCellVersion = cellVersion;
+		
+		if(rodConstraint) 	ProjectRods();
+		double[] y = new double[ode.getDimension()];
+		ode.GetState(y);
+		try {
+			odeIntegrator.integrate(ode, 0.0, y, NMax*relaxationTimeStepdt, y);
+		} catch(RelaxationStop stop) {
+			return sum;											// Ball objects are at the last output
+		}
+		ode.Synchronise();
+		ode.SetState(y);
+		return sum;
+	}
+	
+	DormandPrince54Integrator RelaxationIntegrator(RelaxationODE ode) {		// DP54 with the tolerances of ode, see RelaxationODE.Tolerance()
+		double[] absTol = new double[ode.getDimension()], relTol = new double[ode.getDimension()];
+		ode.Tolerances(absTol, relTol);
+		return new DormandPrince54Integrator(0, relaxationTimeStepdt, absTol, relTol); 	// (minStep, maxStep, absTol, relTol)
+	}
+	
+	public static int Rejected(DormandPrince54Integrator integrator, boolean initialStepSize, int NStep) {		// Steps rejected so far in the running integrate(), given NStep accepted ones. Every attempt evaluates 6 new stages, the 7th is the first of the next step. Before that, 1 evaluation at the start and 1 to guess the first step size, unless it was set
+		return (integrator.getEvaluations() - (initialStepSize ? 1 : 2))/6 - NStep;
+	}
+	
+	private static class RelaxationStop extends RuntimeException {		// Thrown by the step handler to end Relaxation(int, RelaxationOutput) early. The integrator has no other way to stop
+		private static final long serialVersionUID = 1L;
+	}
+	
+	boolean RelaxationInterval(int iOutput, int NOutput, int NMax, int[] relaxationOut, int[] sum, RelaxationOutput output) {		// Counts and outputs interval iOutput of Relaxation(int, RelaxationOutput). Returns true if relaxation should stop after it: always after NMax intervals, early if relaxationStop and the colony is at rest, and after NOutput intervals unless disallowed overlap or movement remains
+		for(int ii=0; ii<sum.length; ii++) 	sum[ii] += relaxationOut[ii];
+		relaxationIter++;
+		relaxationTime += relaxationTimeStepdt;
+		boolean stop = iOutput>=NMax;
+		if(!stop && (relaxationStop || iOutput>=NOutput)) {
+			boolean overlapping = MaxOverlap() > relaxationOverlapLim;
+			boolean moving = MaxSpeed() > relaxationSpeedLim || KineticEnergy()/ballArray.size() > relaxationEnergyLim;
+			if(relaxationStop && !overlapping && !moving) {
+				if(iOutput<NOutput) 	Write("    Colony at rest, relaxation stopped after " + iOutput + " of " + NOutput + " intervals", "iter");
+				stop = true;
+			}
+			if(iOutput>=NOutput && (allowOverlap || !overlapping) && (allowMovement || !moving)) 	stop = true;
+		}
+		if(stop && iOutput>NOutput) 	Write("    Relaxation extended to " + iOutput + " intervals", "iter");
+		relaxationBusy = !stop;
+		output.Output(relaxationOut);
+		return stop;
+	}
+	
+	public double MaxOverlap() {							// [m] Largest overlap between two cells
+		double overlap = 0.0;
+		PairList pairs = DetectCollisionCellPairs(1.0);
+		for(int iPair=0; iPair<pairs.N; iPair++) {
+			Cell cell0 = cellArray.get(pairs.cell0[iPair]);
+			Cell cell1 = cellArray.get(pairs.cell1[iPair]);
+			overlap = Math.max(overlap, cell0.ballArray[0].radius + cell1.ballArray[0].radius - cell0.GetDistance(cell1));
+		}
+		return overlap;
+	}
+	
+	public double MaxSpeed() {								// [m/s] Largest ball speed
+		double speed = 0.0;
+		for(Ball ball : ballArray) 	speed = Math.max(speed, ball.vel.norm());
+		return speed;
+	}
+	
+	public double KineticEnergy() {							// [J] Sum of 1/2 m v^2 over all balls
+		double energy = 0.0;
+		for(Ball ball : ballArray) 	energy += 0.5*ball.n*MWX[ball.cell.type]*ball.vel.dot(ball.vel);
+		return energy;
+	}
+	
+	void ProjectRods() {									// Moves the balls of each rod along it to its rest length, the heavier ball less, and removes their relative velocity along the rod. For rodConstraint, as growth changed the rest length since the last relaxation
+		for(RodSpring rod : rodSpringArray) {
+			Ball ball0 = rod.ballArray[0], ball1 = rod.ballArray[1];
+			double w0 = 1.0/(ball0.n*MWX[ball0.cell.type]), w1 = 1.0/(ball1.n*MWX[ball1.cell.type]);
+			Vector3d r = ball1.pos.minus(ball0.pos);
+			double d = r.norm();
+			double c = (d-rod.restLength)/(d*(w0+w1));
+			ball0.pos.x += w0*c*r.x;		ball0.pos.y += w0*c*r.y;		ball0.pos.z += w0*c*r.z;
+			ball1.pos.x -= w1*c*r.x;		ball1.pos.y -= w1*c*r.y;		ball1.pos.z -= w1*c*r.z;
+			double k = r.dot(ball1.vel.minus(ball0.vel))/(r.dot(r)*(w0+w1));
+			ball0.vel.x += w0*k*r.x;		ball0.vel.y += w0*k*r.y;		ball0.vel.z += w0*k*r.z;
+			ball1.vel.x -= w1*k*r.x;		ball1.vel.y -= w1*k*r.y;		ball1.vel.z -= w1*k*r.z;
+		}
+	}
+	
+	void GetRelaxationState(double[] y) {					// Positions and, unless overdamped, velocities of all balls, for the relaxation ODE
+		int ii=0;
+		for(Ball ball : ballArray) { 
+			y[ii++] = ball.pos.x;
+			y[ii++] = ball.pos.y;
+			y[ii++] = ball.pos.z;
+			if(overdamped)		continue;					// Velocity follows from the forces
+			y[ii++] = ball.vel.x;
+			y[ii++] = ball.vel.y;
+			y[ii++] = ball.vel.z;
+		}
+	}
+	
+	void SetRelaxationState(double[] y) {					// Inverse of GetRelaxationState()
+		int ii=0;
+		for(Ball ball : ballArray) {
+			ball.pos.x = y[ii++];
+			ball.pos.y = y[ii++];
+			ball.pos.z = y[ii++];
+			if(overdamped)		continue;
+			ball.vel.x = y[ii++];
+			ball.vel.y = y[ii++];
+			ball.vel.z = y[ii++];
+		}
+	}
+	
+	void RelaxationStep(RelaxationODE ode, double dt, boolean check) {		// After each successful solver step of dt: count it and, if check or formBreakPolicy says so, form and break springs
+		ode.Synchronise();
+		ode.NStep++;
+		ode.formBreakNStep++;
+		ode.formBreakTime += dt;
+		if(!check && !FormBreakDue(ode)) {
+			ode.NFormBreakSkip++;
+			return;
+		}
+		ode.NFormBreak++;
+		ode.formBreakNStep = 0;
+		ode.formBreakTime = 0.0;
+		if(formBreakPolicy!=0) {							// Positions at this check, for the displacement trigger
+			if(ode.formBreakPos==null) 	ode.formBreakPos = new double[3*ballArray.size()];
+			int ii=0;
+			for(Ball ball : ballArray) {
+				ode.formBreakPos[ii++] = ball.pos.x;
+				ode.formBreakPos[ii++] = ball.pos.y;
+				ode.formBreakPos[ii++] = ball.pos.z;
+			}
+		}
+		int[] springChanges = FormBreak();
+		ode.NAnchorForm += springChanges[0]; 
+		ode.NAnchorBreak += springChanges[1];
+		ode.NStickForm += springChanges[2];
+		ode.NStickBreak += springChanges[3];
+		ode.NFilBreak += springChanges[4];
+	}
+	
+	boolean FormBreakDue(RelaxationODE ode) {				// Whether RelaxationStep() should call FormBreak() after this step, see formBreakPolicy. The first step always checks
+		if(formBreakPolicy==0 || ode.formBreakPos==null) 	return true;
+		if(formBreakPolicy==1) {
+			if(ode.formBreakNStep>=formBreakNStep) 			return true;
+		} else if(formBreakPolicy==2) {
+			if(ode.formBreakTime>=formBreakTime) 			return true;
+		} else {
+			throw new IndexOutOfBoundsException("FormBreak policy: " + formBreakPolicy);
+		}
+		if(formBreakDisplacement>0.0) {
+			double lim2 = formBreakDisplacement*formBreakDisplacement;
+			int ii=0;
+			for(Ball ball : ballArray) {
+				double dx = ball.pos.x - ode.formBreakPos[ii++];
+				double dy = ball.pos.y - ode.formBreakPos[ii++];
+				double dz = ball.pos.z - ode.formBreakPos[ii++];
+				if(dx*dx+dy*dy+dz*dz > lim2) {
+					ode.NFormBreakMoved++;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	
 	public int[] FormBreak() {								// Breaks and forms sticking, filament springs when needed. Used during Relaxation()
-		int NAnchorBreak= 0;
-		int NAnchorForm = 0;
-		int NStickBreak = 0;
-		int NStickForm 	= 0;
-		int NFilBreak 	= 0;
+		if(broadphase==0)		return FormBreakAllPairs();
+		int[] count = new int[5];							// {NAnchorForm, NAnchorBreak, NStickForm, NStickBreak, NFilBreak}
+		int NCell = cellArray.size();
+		// Anchoring
+		if(anchoring) {
+			for(Cell cell0 : cellArray) 		AnchorFormBreak(cell0, count);
+		}
+		// Break filial links and sticking springs. Each linked pair is checked once, from the cell with the lowest index, using the first spring found (as in FormBreakAllPairs())
+		HashMap<Cell, Integer> cellIndex = new HashMap<Cell, Integer>(2*NCell);
+		for(int ii=0; ii<NCell; ii++) 	cellIndex.put(cellArray.get(ii), ii);
+		HashSet<Long> linked = new HashSet<Long>();			// Pairs linked at the start. These are not considered for sticking
+		ArrayList<Cell> checked = new ArrayList<Cell>();	// Cells already checked for cell0
+		for(int ii=0; ii<NCell; ii++) {
+			Cell cell0 = cellArray.get(ii);
+			checked.clear();
+			for(FilSpring fil : new ArrayList<FilSpring>(cell0.filSpringArray)) {		// Copy, breaking removes the spring and its siblings. Filaments take precedence over sticking
+				Cell cell1 = fil.ballArray[0].cell==cell0 ? fil.ballArray[1].cell : fil.ballArray[0].cell;
+				int jj = cellIndex.get(cell1);
+				if(jj<ii || checked.contains(cell1))		continue;
+				checked.add(cell1);
+				linked.add((long)ii*NCell + jj);
+				double distance = fil.GetL().norm();
+				if(distance>fil.restLength+filStretchLim) 	count[4] += fil.Break();		// Also breaks its siblings
+			}
+			if(!sticking)		continue;
+			for(StickSpring stick : new ArrayList<StickSpring>(cell0.stickSpringArray)) {
+				Cell cell1 = stick.ballArray[0].cell==cell0 ? stick.ballArray[1].cell : stick.ballArray[0].cell;
+				int jj = cellIndex.get(cell1);
+				if(jj<ii || checked.contains(cell1))		continue;
+				checked.add(cell1);
+				linked.add((long)ii*NCell + jj);
+				double dist = stick.GetL().norm();
+				if(dist > stick.restLength+stickStretchLim) 	count[3] += stick.Break();	// Also breaks its siblings
+			}
+		}
+		// Form sticking springs. Only cells closer than stickFormLim can stick, so only pairs whose boxes overlap with half that margin are checked. Pairs are in the same order as in FormBreakAllPairs()
+		if(sticking) {
+			if(stickBox==null || stickBox.length < 6*NCell) 	stickBox = new double[6*NCell];
+			for(int ii=0; ii<NCell; ii++) 	CollisionGrid.CellBox(cellArray.get(ii), 1.0, 0.5*stickFormLim, stickBox, 6*ii);
+			if(stickPairs==null) 			stickPairs = new PairList();
+			if(broadphase==1) {
+				if(stickGrid==null) 		stickGrid = new CollisionGrid(0.0);
+				stickGrid.binSize = CollisionGrid.BinSize(this) + stickFormLim;
+				stickGrid.FindPairs(stickBox, NCell, stickPairs);
+			} else if(broadphase==2) {
+				if(stickTree==null) 		stickTree = new AABBTree(this, treeMargin);
+				stickTree.FindPairs(stickBox, NCell, stickPairs);
+			} else if(broadphase==3) {
+				Sweep().FindPairs(stickBox, NCell, stickPairs);
+			} else {
+				throw new IndexOutOfBoundsException("Broadphase: " + broadphase);
+			}
+			for(int iPair=0; iPair<stickPairs.N; iPair++) {
+				int ii = stickPairs.cell0[iPair];
+				int jj = stickPairs.cell1[iPair];
+				if(linked.contains((long)ii*NCell + jj)) 	continue;
+				Cell cell0 = cellArray.get(ii);
+				Cell cell1 = cellArray.get(jj);
+				double R2 = cell0.ballArray[0].radius + cell1.ballArray[0].radius;
+				if(StickDistance(cell0, cell1) < R2+stickFormLim) 	count[2] += cell0.Stick(cell1);
+			}
+		}
+		return count;
+	}
+	
+	public int[] FormBreakAllPairs() {						// Same as FormBreak(), but checks all pairs of cells. Used for broadphase == 0 and as reference
+		int[] count = new int[5];							// {NAnchorForm, NAnchorBreak, NStickForm, NStickBreak, NFilBreak}
 		
 		for(int ii=0; ii<cellArray.size(); ii++) {
 			Cell cell0 = cellArray.get(ii);
-			int shape0 = this.shapeX[cell0.type]; 
 			// Anchoring
-			if(anchoring) {
-				Ball ball0 = cell0.ballArray[0];
-				Ball ball1 = (shape0==1 || shape0==2) ? ball1 = cell0.ballArray[1] : null;
-				if(shape0>2)	throw new IndexOutOfBoundsException("Cell type: " + cell0.type);
-
-				if(cell0.anchorSpringArray.size()>0) { 		// This cell is already anchored
-					ArrayList<AnchorSpring> breakArray = new ArrayList<AnchorSpring>();
-					for(AnchorSpring anchor : cell0.anchorSpringArray) {
-						// Break anchor?
-						Vector3d diff = anchor.GetL();
-						double dn = diff.norm();
-						if(dn > anchor.restLength+anchorStretchLim) {	// too much tension --> break the spring
-							breakArray.add(anchor);
-						}
-					}
-					for(AnchorSpring anchor : breakArray) {
-						NAnchorBreak += anchor.Break();
-					}
-				} else {									// Cell is not yet anchored
-					// Form anchor?
-					boolean formBall0 = (ball0.pos.z < anchorFormLim+ball0.radius) ? true : false;
-					boolean formBall1 = false;
-					if(shape0==1 || shape0==2) 	formBall1 = (ball1.pos.z < anchorFormLim+ball1.radius) ? true : false;			// If ball1 != null
-					if(formBall0 || formBall1) 	NAnchorForm += cell0.Anchor();
-					if(shape0>2)	throw new IndexOutOfBoundsException("Cell type: " + cell0.type);
-				}
-			}
+			if(anchoring) 		AnchorFormBreak(cell0, count);
 			// Sticking and filial links
 			for(int jj=ii+1; jj<cellArray.size(); jj++) {	// Only check OTHER cells not already checked in a different order (i.e. factorial elimination)
 				Cell cell1 = cellArray.get(jj);
-				int shape1 = this.shapeX[cell1.type];
 				// Are these cells connected to each other, either through sticking spring or filament?
 				boolean isStuck = false, isFilament = false;
 				Spring stickingSpring = null, filamentSpring = null; 
@@ -517,58 +882,93 @@ public class Model implements Serializable {
 					double distance = filamentSpring.GetL().norm();
 					// Check if we can break this spring
 					if(distance>filamentSpring.restLength+filStretchLim) {
-						NFilBreak += filamentSpring.Break();	// Also breaks its siblings
+						count[4] += filamentSpring.Break();	// Also breaks its siblings
 					}
 				} else if (sticking){						// Check if we want to do sticking, or break the sticking spring
-					// Determine current distance, required for formation and breaking
-					Ball c0b0 = cell0.ballArray[0];
-					Ball c1b0 = cell1.ballArray[0];				
 					if(isStuck) {							// Stuck --> can we break this spring (and its siblings)?
 						double dist = stickingSpring.GetL().norm();
-						if(dist > stickingSpring.restLength+stickStretchLim) 		NStickBreak += stickingSpring.Break();
+						if(dist > stickingSpring.restLength+stickStretchLim) 		count[3] += stickingSpring.Break();
 					} else {								// Not stuck --> can we stick them? We have already checked if they are linked through filaments, not the case
-						double R2 = c0b0.radius + c1b0.radius;
-						Vector3d dirn = (c1b0.pos.minus(c0b0.pos));
-						double dist;
-						if(shape0==0 && shape1==0) {	// both spheres
-							if(stickType[cell0.type][cell1.type]) { 
-								dist = (c1b0.pos.minus(c0b0.pos)).norm();						// Not a spring, so can't use GetL() yet
-							} else continue;
-						} else if(shape0==0) {			// 1st sphere, 2nd rod
-							double H2f =  1.5*(stickFormLim+(lengthCellMax[cell1.type] + R2));	// H2 is maximum allowed distance with still change to collide: R0 + R1 + 2*R1*aspect
-							if(stickType[cell0.type][cell1.type] && dirn.x<H2f && dirn.y<H2f && dirn.z<H2f) {
-								Ball c1b1 = cell1.ballArray[1];
-								// do a sphere-rod collision detection
-								ericson.ReturnObject C = ericson.DetectCollision.LinesegPoint(c1b0.pos, c1b1.pos, c0b0.pos);
-								dist = C.dist;
-							} else continue;
-						} else if(shape1==0) {			// 2nd sphere, 1st rod
-							double H2f = 1.5*(stickFormLim+(lengthCellMax[cell0.type] + R2));	// H2 is maximum allowed distance with still change to collide: R0 + R1 + 2*R1*aspect
-							if(stickType[cell0.type][cell1.type] && dirn.x<H2f && dirn.y<H2f && dirn.z<H2f) {
-								Ball c0b1 = cell0.ballArray[1];
-								// do a sphere-rod collision detection
-								ericson.ReturnObject C = ericson.DetectCollision.LinesegPoint(c0b0.pos, c0b1.pos, c1b0.pos);
-								dist = C.dist;
-							} else continue;
-						} else if((shape0==1 || shape0==2) && (shape1==1 || shape1==2)) {  	// both rod
-							double H2f = 1.5*(stickFormLim+(lengthCellMax[cell0.type] + lengthCellMax[cell1.type] + R2));
-							if(stickType[cell0.type][cell1.type] && dirn.x<H2f && dirn.y<H2f && dirn.z<H2f) {
-								Ball c0b1 = cell0.ballArray[1];
-								Ball c1b1 = cell1.ballArray[1];
-								// calculate the distance between the two segments
-								ericson.ReturnObject C = ericson.DetectCollision.LinesegLineseg(c0b0.pos, c0b1.pos, c1b0.pos, c1b1.pos);
-								dist = C.dist;
-							} else continue;
-						} else {
-							throw new IndexOutOfBoundsException("Cell types: " + cell0.type + " and " + cell1.type);
-						}
+						double R2 = cell0.ballArray[0].radius + cell1.ballArray[0].radius;
 						// Stick if distance is small enough
-						if(dist<R2+stickFormLim) 	NStickForm += cell0.Stick(cell1);
+						if(StickDistance(cell0, cell1) < R2+stickFormLim) 	count[2] += cell0.Stick(cell1);
 					}
 				}
 			}
 		}
-		return new int[]{NAnchorForm, NAnchorBreak, NStickForm, NStickBreak, NFilBreak};
+		return count;
+	}
+	
+	void AnchorFormBreak(Cell cell0, int[] count) {			// Breaks anchors of cell0 or anchors it. Adds to count[0] (formed) and count[1] (broken)
+		int shape0 = this.shapeX[cell0.type]; 
+		Ball ball0 = cell0.ballArray[0];
+		Ball ball1 = (shape0==1 || shape0==2) ? ball1 = cell0.ballArray[1] : null;
+		if(shape0>2)	throw new IndexOutOfBoundsException("Cell type: " + cell0.type);
+
+		if(cell0.anchorSpringArray.size()>0) { 		// This cell is already anchored
+			ArrayList<AnchorSpring> breakArray = new ArrayList<AnchorSpring>();
+			for(AnchorSpring anchor : cell0.anchorSpringArray) {
+				// Break anchor?
+				Vector3d diff = anchor.GetL();
+				double dn = diff.norm();
+				if(dn > anchor.restLength+anchorStretchLim) {	// too much tension --> break the spring
+					breakArray.add(anchor);
+				}
+			}
+			for(AnchorSpring anchor : breakArray) {
+				count[1] += anchor.Break();
+			}
+		} else {									// Cell is not yet anchored
+			// Form anchor?
+			boolean formBall0 = (ball0.pos.z < anchorFormLim+ball0.radius) ? true : false;
+			boolean formBall1 = false;
+			if(shape0==1 || shape0==2) 	formBall1 = (ball1.pos.z < anchorFormLim+ball1.radius) ? true : false;			// If ball1 != null
+			if(formBall0 || formBall1) 	count[0] += cell0.Anchor();
+		}
+	}
+	
+	double StickDistance(Cell cell0, Cell cell1) {			// Distance between the axes of two unlinked cells, or infinity if they cannot stick
+		int shape0 = this.shapeX[cell0.type];
+		int shape1 = this.shapeX[cell1.type];
+		Ball c0b0 = cell0.ballArray[0];
+		Ball c1b0 = cell1.ballArray[0];
+		double R2 = c0b0.radius + c1b0.radius;
+		Vector3d dirn = (c1b0.pos.minus(c0b0.pos));
+		if(shape0==0 && shape1==0) {	// both spheres
+			if(stickType[cell0.type][cell1.type]) { 
+				return (c1b0.pos.minus(c0b0.pos)).norm();						// Not a spring, so can't use GetL() yet
+			} else return Double.POSITIVE_INFINITY;
+		} else if(shape0==0) {			// 1st sphere, 2nd rod
+			double H2f =  1.5*(stickFormLim+(lengthCellMax[cell1.type] + R2));	// H2 is maximum allowed distance with still change to collide: R0 + R1 + 2*R1*aspect
+			if(stickType[cell0.type][cell1.type] && dirn.x<H2f && dirn.y<H2f && dirn.z<H2f) {
+				Ball c1b1 = cell1.ballArray[1];
+				// do a sphere-rod collision detection
+				ericson.Result C = Closest();
+				ericson.DetectCollision.LinesegPoint(c1b0.pos, c1b1.pos, c0b0.pos, C);
+				return C.dist;
+			} else return Double.POSITIVE_INFINITY;
+		} else if(shape1==0) {			// 2nd sphere, 1st rod
+			double H2f = 1.5*(stickFormLim+(lengthCellMax[cell0.type] + R2));	// H2 is maximum allowed distance with still change to collide: R0 + R1 + 2*R1*aspect
+			if(stickType[cell0.type][cell1.type] && dirn.x<H2f && dirn.y<H2f && dirn.z<H2f) {
+				Ball c0b1 = cell0.ballArray[1];
+				// do a sphere-rod collision detection
+				ericson.Result C = Closest();
+				ericson.DetectCollision.LinesegPoint(c0b0.pos, c0b1.pos, c1b0.pos, C);
+				return C.dist;
+			} else return Double.POSITIVE_INFINITY;
+		} else if((shape0==1 || shape0==2) && (shape1==1 || shape1==2)) {  	// both rod
+			double H2f = 1.5*(stickFormLim+(lengthCellMax[cell0.type] + lengthCellMax[cell1.type] + R2));
+			if(stickType[cell0.type][cell1.type] && dirn.x<H2f && dirn.y<H2f && dirn.z<H2f) {
+				Ball c0b1 = cell0.ballArray[1];
+				Ball c1b1 = cell1.ballArray[1];
+				// calculate the distance between the two segments
+				ericson.Result C = Closest();
+				ericson.DetectCollision.LinesegLineseg(c0b0.pos, c0b1.pos, c1b0.pos, c1b1.pos, C);
+				return C.dist;
+			} else return Double.POSITIVE_INFINITY;
+		} else {
+			throw new IndexOutOfBoundsException("Cell types: " + cell0.type + " and " + cell1.type);
+		}
 	}
 	
 	//////////////////
@@ -593,66 +993,103 @@ public class Model implements Serializable {
 	public double[] GrowthSyntrophy() throws RuntimeException {								// Growth based on a random number, further enhanced by cell proximity. Used for AOM
 		int NCell = cellArray.size();
 		double[] increaseAmountArray = new double[NCell]; 
+		// Random growth. Come up with a mu for each cell first, in the same order as cells are grown below
+		double[] mu = new double[NCell];
+		for(int iCell=0; iCell<NCell; iCell++) {
+			Cell mother = cellArray.get(iCell);
+			mu[iCell] = muAvgSimple[mother.type] + (muStDev[mother.type] * rand.Gaussian());
+		}
+		// Syntrophic growth: count partners close to each mother of a syntrophy type
+		boolean[] isSyntrophyType = new boolean[NXType];
+		boolean[] isSyntrophyPartner = new boolean[NXType];
+		for(int ii=0; ii<syntrophyType.length; ii++) 		isSyntrophyType[syntrophyType[ii]] = true;
+		for(int ii=0; ii<syntrophyPartner.length; ii++) 	isSyntrophyPartner[syntrophyPartner[ii]] = true;
+		boolean isDependent = false;					// Does the growth of partners depend on syntrophy too?
+		for(int type=0; type<NXType; type++) 			isDependent |= isSyntrophyType[type] && isSyntrophyPartner[type];
+		int[] NPartner = null;
+		RadiusQuery query = null;
+		if(syntrophyType.length>0 && syntrophyPartner.length>0) {
+			if(isDependent) 	query = new RadiusQuery(this, syntrophyPartner, syntrophyDist, 0.0);		// Count when growing, below
+			else 				NPartner = CountSyntrophyPartners(mu, isSyntrophyType, isSyntrophyPartner);
+		}
+		// Grow cells
 		for(int iCell=0; iCell<NCell; iCell++){
 			Cell mother = cellArray.get(iCell);
 			double amount = mother.GetAmount();
-
-			// Random growth
-			double mu = muAvgSimple[mother.type] + (muStDev[mother.type] * rand.Gaussian());	// Come up with a mu for this cell, this iteration
-			// Syntrophic growth
 			double syntrophyFactor = 1.0; 								// No acceleration by default
-			boolean isSyntrophyType = false;
-			for(int ii=0; ii<syntrophyType.length; ii++){
-				if(mother.type == syntrophyType[ii]) {
-					isSyntrophyType = true;
-					break;
-				}
-			}
-			if(isSyntrophyType) {
+			if(isSyntrophyType[mother.type]) {
 				int N = 0;
-				for(Cell cell : cellArray) {
-					int shapeMother = this.shapeX[mother.type];
-					int shapeCell = this.shapeX[cell.type];
-					boolean isSyntrophyPartner = false;
-					for(int ii=0; ii<syntrophyPartner.length; ii++){
-						if(cell.type == syntrophyPartner[ii]) {
-							isSyntrophyPartner = true;
-							break;
-						}
-					}
-					if(isSyntrophyPartner) {
-						double R2 = mother.ballArray[0].radius + cell.ballArray[0].radius; 			// We'll need the total radius
-						if(shapeMother==0 && shapeCell==0) {
-							if(mother.ballArray[0].pos.minus( cell.ballArray[0].pos ).norm() - R2 < syntrophyDist) 		
-								N++;
-						} else if((shapeMother==1 || shapeMother==2) && (shapeCell==1 || shapeCell==2)) {
-							if(ericson.DetectCollision.LinesegLineseg(mother.ballArray[0].pos, mother.ballArray[1].pos, cell.ballArray[0].pos, cell.ballArray[1].pos).dist -R2 < syntrophyDist)
-								N++;
-						} else {
-							Cell sphere, rod;
-							if(shapeMother==0 && (shapeCell==1 || shapeCell==2)) {
-								sphere = mother;
-								rod = cell;
-							} else if((shapeMother==1 || shapeMother==2) && shapeCell==0) {
-								sphere = cell;
-								rod = mother;
-							} else {
-								throw new IndexOutOfBoundsException("Unknown cell types: mother " + mother.type + " and other cell " + cell.type);
-							}
-							if(ericson.DetectCollision.LinesegPoint(rod.ballArray[0].pos, rod.ballArray[1].pos, sphere.ballArray[0].pos).dist - R2 < syntrophyDist)
-								N++;
-						}
-					}
-				}
+				if(NPartner!=null) 		N = NPartner[iCell];
+				else if(query!=null) 	N = query.Count(iCell);
 				syntrophyFactor = syntrophyA-(syntrophyA-1)*Math.exp(-syntrophyB*N);
 			}
-			double amountNew = amount*Math.exp(mu*syntrophyFactor*growthTimeStep/3600.0);					// We need growthTimeStep s --> h
-			// Syntrophic growth for sticking cells
+			double amountNew = GrowthAmount(amount, mu[iCell], syntrophyFactor);
+			if(query!=null) 		query.radiusMargin = Math.max(query.radiusMargin, mother.BallRadius(amountNew) - mother.ballArray[0].radius);	// Cells grown so far are larger than in the tree
 			mother.SetAmount(amountNew);
 			increaseAmountArray[iCell] = amountNew - amount;
 		}
 		return increaseAmountArray;
 	}
+	
+	double GrowthAmount(double amount, double mu, double syntrophyFactor) {
+		return amount*Math.exp(mu*syntrophyFactor*growthTimeStep/3600.0);					// We need growthTimeStep s --> h
+	}
+	
+	int[] CountSyntrophyPartners(double[] mu, boolean[] isSyntrophyType, boolean[] isSyntrophyPartner) {	// Number of partners for each syntrophy type cell, if partners are not syntrophy types themselves. Done in parallel
+		final int NCell = cellArray.size();
+		// Partners grow without syntrophy, so we know their new radius in advance. Cells are grown in order of index, so a mother sees partners with a lower index at their new radius
+		final double[] radiusOld = new double[NCell];
+		final double[] radiusNew = new double[NCell];
+		double radiusMargin = 0.0;
+		int NMother = 0;
+		for(int iCell=0; iCell<NCell; iCell++) {
+			Cell cell = cellArray.get(iCell);
+			radiusOld[iCell] = cell.ballArray[0].radius;
+			if(isSyntrophyPartner[cell.type]) {
+				radiusNew[iCell] = cell.BallRadius(GrowthAmount(cell.GetAmount(), mu[iCell], 1.0));
+				radiusMargin = Math.max(radiusMargin, radiusNew[iCell] - radiusOld[iCell]);
+			}
+			if(isSyntrophyType[cell.type]) 	NMother++;
+		}
+		final int[] motherIndex = new int[NMother];
+		NMother = 0;
+		for(int iCell=0; iCell<NCell; iCell++) {
+			if(isSyntrophyType[cellArray.get(iCell).type]) 	motherIndex[NMother++] = iCell;
+		}
+		final RadiusQuery query = new RadiusQuery(this, syntrophyPartner, syntrophyDist, radiusMargin);
+		final int[] NPartner = new int[NCell];
+		// Split mothers over tasks
+		ForkJoinPool pool = Pool();
+		int NTask = Math.min(NMother, 8*pool.getParallelism());
+		ArrayList<RecursiveAction> taskArray = new ArrayList<RecursiveAction>(NTask);
+		for(int iTask=0; iTask<NTask; iTask++) {
+			final int start = (int)((long)NMother*iTask/NTask);
+			final int end = (int)((long)NMother*(iTask+1)/NTask);
+			RecursiveAction task = new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				protected void compute() {
+					AABBTree.Cursor cursor = new AABBTree.Cursor();
+					ericson.Result closest = new ericson.Result();
+					for(int im=start; im<end; im++) {
+						int iCell = motherIndex[im];
+						Cell mother = cellArray.get(iCell);
+						int NCandidate = query.Candidates(iCell, cursor);
+						int N = 0;
+						for(int ic=0; ic<NCandidate; ic++) {
+							int jj = cursor.hit[ic];
+							double radius = jj<iCell ? radiusNew[jj] : radiusOld[jj];
+							if(query.SurfaceDistance(mother, radiusOld[iCell], cellArray.get(jj), radius, closest) < syntrophyDist) 	N++;
+						}
+						NPartner[iCell] = N;
+					}
+				}
+			};
+			pool.execute(task);
+			taskArray.add(task);
+		}
+		for(RecursiveAction task : taskArray) 	task.join();
+		return NPartner;
+	}
 
 	
 	public double[] GrowthFlux() throws RuntimeException {
@@ -671,7 +1108,12 @@ public class Model implements Serializable {
 	}
 	
 	public Cell DivideCell(Cell c0) {
+		return DivideCell(c0, true);
+	}
+	
+	public Cell DivideCell(Cell c0, boolean updateTree) {		// updateTree can be false for all but the first of a series of divisions if nothing else moved cells in between. DivideCell keeps the collision tree up to date for the cells it moves
 		// Nomenclature: c0 == mother, c1 == daughter
+		if(broadphase!=0 && updateTree)		CollisionTree().Update();
 		double n = c0.GetAmount();
 		Cell c1;
 		int shape = this.shapeX[c0.type];
@@ -709,17 +1151,7 @@ public class Model implements Serializable {
 					c1.ballArray[0].pos.z = Math.max(c1.ballArray[0].radius, c1.ballArray[0].pos.z);
 				}
 				// Check if all went well: collision detection
-				// Create a copy of cellArray and remove c0 and c1 from it
-				ArrayList<Cell> copyCellArray = new ArrayList<Cell>(cellArray);
-				copyCellArray.remove(c0);		copyCellArray.remove(c1);
-				boolean overlap = false;
-				if(DetectCollisionCellCell(c0, c1, 1.0))		overlap = true; 
-				for(Cell cell : copyCellArray) {
-					if(DetectCollisionCellCell(c0, cell, 1.0) || DetectCollisionCellCell(c1, cell, 1.0)) {
-						overlap = true; 
-						break;
-					}
-				}
+				boolean overlap = DetectCollisionCellCell(c0, c1, 1.0) || DivideCellOverlap(c0, c1);
 				// See if we can continue with these positions now
 				if(!overlap)	break;
 				// Continue the while loop if no proper direction was found
@@ -776,6 +1208,7 @@ public class Model implements Serializable {
 			}
 			c1.mother = c0;
 			c1.rodSpringArray.get(0).restLength = c0.rodSpringArray.get(0).restLength;
+			SpringsChanged();
 
 		} else {
 			throw new IndexOutOfBoundsException("Cell type: " + c0.type);
@@ -796,10 +1229,41 @@ public class Model implements Serializable {
 			}
 		}
 		// Set filament springs is done in Run classes
+		if(broadphase!=0) {
+			AABBTree tree = CollisionTree();
+			tree.Update(c0);
+			tree.Update(c1);
+		}
 		// Done, return daughter cell
 		return c1;
 	}
 	
+	boolean DivideCellOverlap(Cell c0, Cell c1) {		// Does c0 or c1 collide with any cell other than themselves? Only checks nearby cells from the collision tree unless broadphase == 0
+		if(broadphase==0) {
+			for(Cell cell : cellArray) {
+				if(cell==c0 || cell==c1)		continue;
+				if(DetectCollisionCellCell(c0, cell, 1.0) || DetectCollisionCellCell(c1, cell, 1.0))		return true;
+			}
+			return false;
+		}
+		return DetectCollisionNearby(c0, c0, c1) || DetectCollisionNearby(c1, c0, c1);
+	}
+	
+	boolean DetectCollisionNearby(Cell cell, Cell skip0, Cell skip1) {		// Does cell collide with any cell other than skip0 and skip1? Only checks cells from the collision tree, so it needs to be up to date for all other cells
+		if(nearbyBox==null) {
+			nearbyBox = new double[6];
+			nearbyCandidate = new ArrayList<Cell>();
+		}
+		nearbyCandidate.clear();
+		CollisionGrid.CellBox(cell, 1.0, 0.0, nearbyBox, 0);
+		CollisionTree().Query(nearbyBox, 0, nearbyCandidate);
+		for(Cell candidate : nearbyCandidate) {
+			if(candidate==skip0 || candidate==skip1)		continue;
+			if(DetectCollisionCellCell(cell, candidate, 1.0))		return true;
+		}
+		return false;
+	}
+	
 	public void CreateFilament(Cell c0, Cell c1) {
 		int shape0 = this.shapeX[c0.type];
 		if(c0.type==c1.type && shape0==0)
@@ -913,89 +1377,38 @@ public class Model implements Serializable {
 	}
 
 	public void Attachment(int NNew) {
+		if(NNew<1)		return;
+		RayCast ray = new RayCast(this);											// Finds the first cell the new cell hits along its path
+		Vector3d[] spread = GetBallSpread();										// Range of the domain, extended with each new cell below
 		for(int iA=0; iA<NNew; iA++) {
 			// Define the cell we will attach
 			final int typeNew = attachCellType; 
 			final double nNew = nCellMin[typeNew] * (1.0 + rand.Double());
 			final boolean filNew = filament && filType[typeNew];
 			final double rNew = Ball.Radius(nNew, typeNew, this); 
-			// Create array of balls in non-spherical cells 
-			ArrayList<Ball> ballArrayRod = new ArrayList<Ball>(ballArray.size());
-			for(Ball ball : ballArray) {
-				int shape = ball.cell.model.shapeX[ball.cell.type];
-				if(shape==1 || shape==2) 	ballArrayRod.add(ball);
-				else if(shape>2)	throw new IndexOutOfBoundsException("Cell type: " + ball.cell.type);
-			}
-			// Find a random rod's ball position dest(ination) and move the ball there from dirn ("along the path") until we find a particle
+			// Find a random position dest(ination) and move the new cell there from dirn ("along the path") until we find a particle
 			Vector3d firstPos = new Vector3d(0.0, 0.0, 0.0);
 			// Create and position the new cell to this champion ball. Position it in the direction of dirn
 			Cell newCell = new Cell(typeNew, nNew, firstPos, new Vector3d(), filNew, this);
 			int shapeNew = this.shapeX[typeNew]; 
-			tryloop:while(true) {
+			tryloop:while(cellArray.size()>1) {										// Nothing to attach to if there are no other cells, leave it where it is
 				// Find dest(ination) based on random position within range of the domain
-				Vector3d[] spread = GetBallSpread();
 				Vector3d dest = new Vector3d(
 						spread[0].x + rand.Double()*(spread[1].x-spread[0].x),
 						spread[0].y + rand.Double()*(spread[1].y-spread[0].y),
 						spread[0].z + rand.Double()*(spread[1].z-spread[0].z));
 				// Find dirn, any direction away from dest (we take care of substratum blocking later)
 				Vector3d dirn = new Vector3d(rand.Double()-0.5, rand.Double()-0.5, rand.Double()-0.5).normalise();
-				// Check how far all (incl. spherical) balls are from dest and in the correct dirn. Also select our winner (any cell type)
-				Ball firstBall = ballArray.get(0);
-				double firstDist = 0.0;
-				boolean success = false;
-				
-				// Find if the new cell can attach to a spherical cell
-				for(Ball ball : ballArray) {
-					ericson.ReturnObject E = ericson.DetectCollision.LinePoint(dest, dest.plus(dirn), ball.pos);			// Detect distance line-point, with line the path and point the ball.pos
-					// Check if ball.pos is close enough to path to touch the attaching particle by analysing the distance obtained from Ericsson
-					if( E.dist < rNew+ball.radius ) {
-						// Good, if the attaching particle would be moved along path from dirn to dest it would collide with other 
-						// Now check if it is the first ball that the newly attached cell would encounter, i.e. if the distance from dest is the largest yet 
-						if(E.sc > firstDist) {													// sc is the multiplier for the vector that denotes the line to get the segment: since dirn.norm() == 1 we don't need to multiply with the length
-							success = true;
-							// Set this ball to be first to be encountered by the attaching particle
-							firstDist = E.sc;
-							firstBall = ball;
-							firstPos = ball.pos.plus(dirn.times(rNew+ball.radius));		// Position where the new cell will attach after colliding
-						}
-					}
-				}
-				// After checking all balls, check all springs in the rods
-				for(RodSpring spring : rodSpringArray) {
-					// Find the distance between the path of the particle (a line) and the rod spring (a line segment)
-					Ball ball0 = spring.ballArray[0];
-					Ball ball1 = spring.ballArray[1];
-					ericson.ReturnObject E = ericson.DetectCollision.LinesegLine(ball0.pos, ball1.pos, dest, dest.plus(dirn));							// Detect distance line-point, with line the path and point the ball.pos
-					if( E.dist < rNew+ball0.radius ) {
-						// Good, if the attaching particle would be moved along path from dirn to dest it would collide with the rod
-						// Now check if it is the first ball that the newly attached cell would encounter, i.e. if the distance from dest is the largest yet
-						double distFromDest = dest.plus(dirn.times(E.tc)).norm();
-						if(distFromDest > firstDist) {
-							success = true;
-							// Set this ball to be first to be encountered by the attaching particle
-							firstDist = distFromDest;
-							firstBall = ball0;													// Could also be ball1, but doesn't matter here
-							Vector3d away;
-							if(E.sc==0.0 || E.sc==1.0)										// Otherwise, away will be null vector, so choose another direction
-								away = dirn;
-							else
-								away = E.c2.minus(E.c1).normalise();							// Vector pointing away from the collision
-							// The point on the path where the collision is closest, moving the ball away from there until it no longer overlapping
-							firstPos = E.c1.plus(away.times(rNew+ball0.radius));
-						}
-					}
-				}
-				// Get new position. 
-				// Check if we actually had a collision
-				if(!success)						
+				// Find the first ball or rod spring that the new cell would encounter, i.e. the one furthest from dest along dirn (any cell type)
+				if(!ray.Cast(dest, dirn, rNew, newCell))
 					continue tryloop;
+				firstPos = ray.firstPos;
 				// Check if it is valid in case we have a substratum
 				if(normalForce && firstPos.z<rNew)	
 					continue tryloop;	// the new cell went through the plane to get to this point
 				// If a cell of the correct type wins, we're happy
 				for(int ii=0; ii<attachNotTo.length; ii++)
-					if(firstBall.cell.type == attachNotTo[ii])
+					if(ray.firstCell.type == attachNotTo[ii])
 						continue tryloop;
 				// Reposition the cell
 				newCell.ballArray[0].pos = firstPos;
@@ -1004,11 +1417,8 @@ public class Model implements Serializable {
 				} else if (shapeNew>2)
 					throw new IndexOutOfBoundsException("Cell type: " + typeNew);
 				// Check if it is not overlapping with any other cells
-				for(int iCell=0; iCell<cellArray.size()-1; iCell++) {
-					Cell cell = cellArray.get(iCell);
-					if(DetectCollisionCellCell(newCell, cell, 1.0))	
-						continue tryloop;
-				}
+				if(DetectCollisionNearby(newCell, newCell, newCell))
+					continue tryloop;
 //				// See if within range of origin
 //				Vector3d nul = new Vector3d(0,0,0);
 //				double range = 4e-6;
@@ -1017,6 +1427,13 @@ public class Model implements Serializable {
 				// Congratulations!
 				break;
 			}
+			// Keep the tree and spread up to date for the next cell
+			CollisionTree().Update(newCell);
+			for(Ball ball : newCell.ballArray) {
+				spread[0].x = Math.min(spread[0].x, ball.pos.x);		spread[1].x = Math.max(spread[1].x, ball.pos.x);
+				spread[0].y = Math.min(spread[0].y, ball.pos.y);		spread[1].y = Math.max(spread[1].y, ball.pos.y);
+				spread[0].z = Math.min(spread[0].z, ball.pos.z);		spread[1].z = Math.max(spread[1].z, ball.pos.z);
+			}
 			// It will stick/anchor when needed during movement, so we're done
 		}
 	}
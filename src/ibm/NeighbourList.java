@@ -0,0 +1,83 @@
+package ibm;
+
+public class NeighbourList {			// Verlet neighbour list: candidate cell pairs found with a skin margin, reused until a ball has moved more than half the skin
+	public double skin;					// [m] Margin added to the collision distance when building the list
+	public PairList pairs = new PairList();
+	public int NBuild = 0;				// Number of times the list was (re)built
+	Broadphase broadphase;				// Grid, tree or sweep and prune, depending on model.broadphase
+	double[] box = new double[0];
+	double[] posBuild = new double[0];	// Ball positions at the last build
+	int NCellBuild = -1;
+
+	///////////////////////////////////////////////////////////////////
+
+	public NeighbourList(double skin) {
+		this.skin = skin;
+	}
+
+	public boolean Update(Model model, double radiusFactor) {	// Rebuilds the list if needed, returns true if it was rebuilt
+		if(!IsValid(model))	{
+			Build(model, radiusFactor);
+			return true;
+		}
+		return false;
+	}
+
+	public boolean Update(ForceKernel kernel, double radiusFactor) {	// Same, but with the ball positions and boxes from the kernel's arrays
+		if(!IsValid(kernel.pos, kernel.NBall, kernel.NCell)) {
+			if(box.length < 6*kernel.NCell)		box = new double[6*kernel.NCell];
+			kernel.CellBoxes(radiusFactor, 0.5*skin, box);
+			Build(kernel.model, box, kernel.NCell);
+			if(posBuild.length != 3*kernel.NBall)	posBuild = new double[3*kernel.NBall];
+			System.arraycopy(kernel.pos, 0, posBuild, 0, 3*kernel.NBall);
+			return true;
+		}
+		return false;
+	}
+
+	public boolean IsValid(double[] pos, int NBall, int NCell) {
+		if(NCell!=NCellBuild || posBuild.length!=3*NBall)		return false;
+		final double maxDisp2 = 0.25*skin*skin;
+		for(int ii=0; ii<3*NBall; ii+=3) {
+			double dx = pos[ii]-posBuild[ii], dy = pos[ii+1]-posBuild[ii+1], dz = pos[ii+2]-posBuild[ii+2];
+			if(dx*dx+dy*dy+dz*dz > maxDisp2)		return false;
+		}
+		return true;
+	}
+
+	public boolean IsValid(Model model) {
+		int NBall = model.ballArray.size();
+		if(model.cellArray.size()!=NCellBuild || posBuild.length!=3*NBall)		return false;
+		// Pairs are guaranteed complete as long as no ball moved more than half the skin (the two balls of a pair can approach by at most the full skin)
+		final double maxDisp2 = 0.25*skin*skin;
+		for(int ii=0; ii<NBall; ii++) {
+			Vector3d pos = model.ballArray.get(ii).pos;
+			double dx = pos.x-posBuild[3*ii], dy = pos.y-posBuild[3*ii+1], dz = pos.z-posBuild[3*ii+2];
+			if(dx*dx+dy*dy+dz*dz > maxDisp2)		return false;
+		}
+		return true;
+	}
+
+	public void Build(Model model, double radiusFactor) {
+		int NCell = model.cellArray.size();
+		int NBall = model.ballArray.size();
+		if(box.length < 6*NCell)		box = new double[6*NCell];
+		for(int iCell=0; iCell<NCell; iCell++) 	CollisionGrid.CellBox(model.cellArray.get(iCell), radiusFactor, 0.5*skin, box, 6*iCell);
+		Build(model, box, NCell);
+		// Remember where balls were
+		if(posBuild.length != 3*NBall)	posBuild = new double[3*NBall];
+		for(int ii=0; ii<NBall; ii++) {
+			Vector3d pos = model.ballArray.get(ii).pos;
+			posBuild[3*ii  ] = pos.x;
+			posBuild[3*ii+1] = pos.y;
+			posBuild[3*ii+2] = pos.z;
+		}
+	}
+
+	void Build(Model model, double[] box, int NCell) {	// Finds the pairs for boxes that include the skin
+		if(broadphase==null) 	broadphase = Broadphase.Create(model, 0.5*skin);
+		broadphase.FindPairs(box, NCell, pairs);
+		NCellBuild = NCell;
+		NBuild++;
+	}
+}
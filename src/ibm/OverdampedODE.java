@@ -0,0 +1,17 @@
+package ibm;
+
+public class OverdampedODE extends RelaxationODE {	// Relaxation without inertia: dx/dt = F/Kd for each ball, so only positions are integrated (3 values per ball instead of 6). Always uses ForceKernel
+	
+	public OverdampedODE(Model model) {
+		super(model);
+	}
+	
+	public int getDimension() {
+		return model.ballArray.size()*3;
+	}
+	
+	public void computeDerivatives(double t, double[] y, double[] yDot) {
+		if(kernel==null)		kernel = new ForceKernel(model, radiusModifier);
+		kernel.Velocities(y, yDot);
+	}
+}
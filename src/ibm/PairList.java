@@ -0,0 +1,25 @@
+package ibm;
+
+import java.util.Arrays;
+
+public class PairList {			// Growable list of cell pairs, stored as indices in model.cellArray. Filled by the broadphase collision detection
+	public int[] cell0 = new int[64];
+	public int[] cell1 = new int[64];
+	public int N = 0;
+
+	///////////////////////////////////////////////////////////////////
+
+	public void Add(int ii, int jj) {
+		if(N==cell0.length) {
+			cell0 = Arrays.copyOf(cell0, 2*N);
+			cell1 = Arrays.copyOf(cell1, 2*N);
+		}
+		cell0[N] = ii;
+		cell1[N] = jj;
+		N++;
+	}
+
+	public void Clear() {
+		N = 0;
+	}
+}
@@ -0,0 +1,240 @@
+package ibm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class ProjectionRelaxation {		// Position based relaxation for quasi-static growth: projects the ball positions onto non-overlap, rod length and spring constraints, without forces or time
+	Model model;
+	RelaxationODE ode;
+	ForceKernel kernel;
+	double[] invMass;					// [1/kg]
+	double[] start;						// Gauss-Seidel: positions at the start of the sweep
+	long[] order = new long[0];			// Gauss-Seidel: Morton code of the first cell of each pair, above the pair index
+	long[] key = new long[0];			// Morton code of each cell
+	double[][] delta = new double[0][];	// Jacobi: corrections summed by each task, 3 per ball
+	int[][] count = new int[0][];		// Jacobi: number of corrections per task and ball
+	ericson.Result[] result = new ericson.Result[0];		// Closest points, one per task
+	static final double omega = 1.5;	// Jacobi: over-relaxation of the mean correction where several constraints act on one ball. Averaging alone converges slowly there
+	public int NSweep;
+
+	///////////////////////////////////////////////////////////////////
+
+	public ProjectionRelaxation(Model model, RelaxationODE ode) {
+		this.model = model;
+		this.ode = ode;
+		if(ode.kernel==null) 	ode.kernel = new ForceKernel(model, RelaxationODE.radiusModifier);
+		kernel = ode.kernel;
+		invMass = new double[kernel.NBall];
+		start = new double[3*kernel.NBall];
+		for(int ii=0; ii<kernel.NBall; ii++) 	invMass[ii] = 1.0/kernel.mass[ii];
+	}
+
+	public void Integrate(double[] y) {		// Projects the positions in y until no ball moves more than model.projectionTol in a sweep, or for model.projectionNSweepMax sweeps. Returns the positions in y and zero velocities. Calls model.RelaxationStep() after each sweep
+		int NPerBall = model.overdamped ? 3 : 6;
+		double[] pos = kernel.pos;
+		for(int ii=0; ii<kernel.NBall; ii++) 	System.arraycopy(y, NPerBall*ii, pos, 3*ii, 3);
+		Arrays.fill(kernel.vel, 0, 3*kernel.NBall, 0.0);
+		Arrays.fill(kernel.force, 0, 3*kernel.NBall, 0.0);	// There are no forces, the Ball objects get zero
+		for(int iSweep=0; ; iSweep++) {
+			if(kernel.springs.version!=model.SpringVersion()) 	kernel.BuildSprings();
+			PairList pairs = kernel.FindPairs();
+			double moved = model.projectionJacobi ? SweepJacobi(pairs) : SweepGaussSeidel(pairs);
+			NSweep++;
+			boolean last = iSweep+1>=model.projectionNSweepMax;
+			if(moved<=model.projectionTol || last) {
+				int version = model.SpringVersion();
+				model.RelaxationStep(ode, 0.0, true);		// Springs may still form or break once the constraints hold
+				if(model.SpringVersion()==version || last) 	break;
+			} else {
+				model.RelaxationStep(ode, 0.0, false);
+			}
+		}
+		for(int ii=0; ii<kernel.NBall; ii++) {
+			System.arraycopy(pos, 3*ii, y, NPerBall*ii, 3);
+			if(NPerBall==6) 	Arrays.fill(y, 6*ii+3, 6*ii+6, 0.0);		// At rest
+		}
+	}
+
+	double SweepGaussSeidel(PairList pairs) {		// Projects each constraint in turn, using the corrections of the previous ones. Returns the largest movement [m]. Soft springs and contacts undo part of each other's corrections, so a single correction need not become small
+		double[] pos = kernel.pos;
+		Sort(pairs);
+		if(result.length==0) 	result = new ericson.Result[]{new ericson.Result()};
+		System.arraycopy(pos, 0, start, 0, 3*kernel.NBall);
+		for(int iPair=0; iPair<pairs.N; iPair++) {
+			int ii = (int)order[iPair];
+			Contact(pos, pairs.cell0[ii], pairs.cell1[ii], result[0], pos, null);
+		}
+		for(int ii=0; ii<kernel.springs.N; ii++) 	Spring(pos, ii, pos, null);
+		Floor();
+		double moved2 = 0.0;
+		for(int ii=0; ii<kernel.NBall; ii++) {
+			double dx = pos[3*ii]-start[3*ii], dy = pos[3*ii+1]-start[3*ii+1], dz = pos[3*ii+2]-start[3*ii+2];
+			moved2 = Math.max(moved2, dx*dx+dy*dy+dz*dz);
+		}
+		return Math.sqrt(moved2);
+	}
+
+	double SweepJacobi(PairList pairs) {		// Projects all constraints from the same positions, split over one task per thread, then moves each ball by the mean of its corrections. Returns the largest movement [m]
+		final double[] pos = kernel.pos;
+		final int NBall = kernel.NBall;
+		final PairList P = pairs;
+		ForkJoinPool pool = model.Pool();
+		final int NTask = pool.getParallelism();
+		if(delta.length!=NTask) {
+			delta = new double[NTask][];
+			count = new int[NTask][];
+			result = new ericson.Result[NTask];
+			for(int iTask=0; iTask<NTask; iTask++) 	result[iTask] = new ericson.Result();
+		}
+		ArrayList<RecursiveAction> taskArray = new ArrayList<RecursiveAction>(NTask);
+		for(int iTask=0; iTask<NTask; iTask++) {
+			final int task = iTask;
+			taskArray.add(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+				protected void compute() {
+					if(delta[task]==null || delta[task].length<3*NBall) {
+						delta[task] = new double[3*NBall];
+						count[task] = new int[NBall];
+					} else {
+						Arrays.fill(delta[task], 0, 3*NBall, 0.0);
+						Arrays.fill(count[task], 0, NBall, 0);
+					}
+					for(int ii=ForceKernel.Start(P.N, task, NTask); ii<ForceKernel.Start(P.N, task+1, NTask); ii++) 	Contact(pos, P.cell0[ii], P.cell1[ii], result[task], delta[task], count[task]);
+					for(int ii=ForceKernel.Start(kernel.springs.N, task, NTask); ii<ForceKernel.Start(kernel.springs.N, task+1, NTask); ii++) 	Spring(pos, ii, delta[task], count[task]);
+				}
+			});
+		}
+		ForceKernel.Run(pool, taskArray);
+		double moved2 = 0.0;
+		for(int ii=0; ii<NBall; ii++) {
+			int N = 0;
+			double dx = 0.0, dy = 0.0, dz = 0.0;
+			for(int iTask=0; iTask<NTask; iTask++) {
+				N += count[iTask][ii];
+				dx += delta[iTask][3*ii];
+				dy += delta[iTask][3*ii+1];
+				dz += delta[iTask][3*ii+2];
+			}
+			if(N==0) 	continue;
+			double f = Math.min(1.0, omega/N);		// A single correction is exact
+			dx *= f;		dy *= f;		dz *= f;
+			pos[3*ii  ] += dx;
+			pos[3*ii+1] += dy;
+			pos[3*ii+2] += dz;
+			moved2 = Math.max(moved2, dx*dx+dy*dy+dz*dz);
+		}
+		return Math.max(Math.sqrt(moved2), Floor());
+	}
+
+	double Contact(double[] pos, int iCell, int jCell, ericson.Result E, double[] target, int[] N) {		// Moves the balls of two overlapping cells apart along the line between their closest points, lighter balls and the ends closest to the contact more. Corrections are added to target, and counted in N unless null. Returns the overlap [m]
+		int b00 = kernel.cellBall0[iCell], b10 = kernel.cellBall0[jCell];
+		int b01 = kernel.cellBall1[iCell], b11 = kernel.cellBall1[jCell];
+		boolean rod0 = b01!=b00, rod1 = b11!=b10;
+		double dx, dy, dz, dist, sc = 0.0, tc = 0.0;		// From cell1 to cell0
+		if(!rod0 && !rod1) {
+			dx = pos[3*b00]-pos[3*b10];		dy = pos[3*b00+1]-pos[3*b10+1];		dz = pos[3*b00+2]-pos[3*b10+2];
+			dist = Math.sqrt(dx*dx+dy*dy+dz*dz);
+		} else if(rod0 && rod1) {
+			ericson.DetectCollision.LinesegLineseg(pos, 3*b00, 3*b01, 3*b10, 3*b11, E);
+			dx = E.dPx;		dy = E.dPy;		dz = E.dPz;		dist = E.dist;		sc = E.sc;		tc = E.tc;
+		} else if(rod0) {
+			ericson.DetectCollision.LinesegPoint(pos, 3*b00, 3*b01, 3*b10, E);
+			dx = E.dPx;		dy = E.dPy;		dz = E.dPz;		dist = E.dist;		sc = E.sc;
+		} else {
+			ericson.DetectCollision.LinesegPoint(pos, 3*b10, 3*b11, 3*b00, E);
+			dx = -E.dPx;	dy = -E.dPy;	dz = -E.dPz;	dist = E.dist;		tc = E.sc;
+		}
+		double d = (kernel.radius[b00] + kernel.radius[b10])*kernel.radiusModifier - dist;
+		if(d<=0.0 || dist==0.0) 	return 0.0;
+		// Each ball has weight w in the closest point, the overlap is removed in proportion to w/m
+		double w00 = rod0 ? 1.0-sc : 1.0, w01 = sc, w10 = rod1 ? 1.0-tc : 1.0, w11 = tc;
+		double sum = w00*w00*invMass[b00] + w10*w10*invMass[b10];
+		if(rod0) 	sum += w01*w01*invMass[b01];
+		if(rod1) 	sum += w11*w11*invMass[b11];
+		double lambda = d/(dist*sum);
+		Move(target, N, b00,  lambda*w00*invMass[b00], dx, dy, dz);
+		Move(target, N, b10, -lambda*w10*invMass[b10], dx, dy, dz);
+		if(rod0) 	Move(target, N, b01,  lambda*w01*invMass[b01], dx, dy, dz);
+		if(rod1) 	Move(target, N, b11, -lambda*w11*invMass[b11], dx, dy, dz);
+		return d;
+	}
+
+	double Spring(double[] pos, int ii, double[] target, int[] N) {		// Moves the balls of spring ii towards its rest length, fully for rods, by the fraction K/Kc for other springs. See SpringTable.Force(). An anchor only moves its ball. Returns the length change [m]
+		SpringTable springs = kernel.springs;
+		int b0 = springs.ball0[ii], b1 = springs.ball1[ii];
+		int i0 = 3*b0, i1 = 3*b1;
+		double dx, dy, dz;			// From ball0 to ball1 or the anchor point
+		if(b1>=0) {
+			dx = pos[i1  ] - pos[i0  ];
+			dy = pos[i1+1] - pos[i0+1];
+			dz = pos[i1+2] - pos[i0+2];
+		} else if(springs.gliding[ii]) {
+			dx = 0.0;		dy = 0.0;		dz = -1.0*pos[i0+2];
+		} else {
+			dx = springs.anchorPoint[3*ii  ] - pos[i0  ];
+			dy = springs.anchorPoint[3*ii+1] - pos[i0+1];
+			dz = springs.anchorPoint[3*ii+2] - pos[i0+2];
+		}
+		double dn = Math.sqrt(dx*dx+dy*dy+dz*dz);
+		if(dn==0.0) 	return 0.0;
+		double C = dn - springs.restLength[ii];
+		if(ii>=springs.NRod) 	C *= Math.min(1.0, springs.K[ii]/model.Kc);
+		double w0 = invMass[b0], w1 = b1>=0 ? invMass[b1] : 0.0;
+		double f = C/(dn*(w0+w1));
+		Move(target, N, b0, f*w0, dx, dy, dz);
+		if(b1>=0) 	Move(target, N, b1, -f*w1, dx, dy, dz);
+		return Math.abs(C);
+	}
+
+	double Floor() {				// Lifts balls out of the substratum if normalForce, after each sweep. Returns the largest correction [m]
+		if(!model.normalForce) 		return 0.0;
+		double moved = 0.0;
+		for(int ii=0; ii<kernel.NBall; ii++) {
+			double r = kernel.radius[ii];
+			if(kernel.pos[3*ii+2]<r) {
+				moved = Math.max(moved, r-kernel.pos[3*ii+2]);
+				kernel.pos[3*ii+2] = r;
+			}
+		}
+		return moved;
+	}
+
+	static void Move(double[] target, int[] N, int ball, double f, double dx, double dy, double dz) {
+		target[3*ball  ] += f*dx;
+		target[3*ball+1] += f*dy;
+		target[3*ball+2] += f*dz;
+		if(N!=null) 	N[ball]++;
+	}
+
+	void Sort(PairList pairs) {		// Orders the pairs by the Morton code of their first cell, so that consecutive corrections are close together in space and in memory
+		double[] pos = kernel.pos;
+		double binSize = CollisionGrid.BinSize(model);
+		double xMin = Double.MAX_VALUE, yMin = Double.MAX_VALUE, zMin = Double.MAX_VALUE;
+		for(int ii=0; ii<kernel.NBall; ii++) {
+			xMin = Math.min(xMin, pos[3*ii]);		yMin = Math.min(yMin, pos[3*ii+1]);		zMin = Math.min(zMin, pos[3*ii+2]);
+		}
+		if(key.length<kernel.NCell) 	key = new long[kernel.NCell];
+		for(int iCell=0; iCell<kernel.NCell; iCell++) {
+			int b = 3*kernel.cellBall0[iCell];
+			key[iCell] = Morton((int)((pos[b]-xMin)/binSize), (int)((pos[b+1]-yMin)/binSize), (int)((pos[b+2]-zMin)/binSize));
+		}
+		if(order.length<pairs.N) 	order = new long[Math.max(pairs.N, 2*order.length)];
+		for(int ii=0; ii<pairs.N; ii++) 	order[ii] = (key[pairs.cell0[ii]] << 32) | ii;
+		Arrays.sort(order, 0, pairs.N);
+	}
+
+	static long Morton(int x, int y, int z) {		// Interleaves the lowest 10 bits of x, y and z
+		return Spread(x) | (Spread(y) << 1) | (Spread(z) << 2);
+	}
+
+	static long Spread(int v) {			// Bit i of v to bit 3*i
+		long x = v & 0x3FF;
+		x = (x | (x << 16)) & 0x30000FFL;
+		x = (x | (x <<  8)) & 0x300F00FL;
+		x = (x | (x <<  4)) & 0x30C30C3L;
+		x = (x | (x <<  2)) & 0x9249249L;
+		return x;
+	}
+}
@@ -0,0 +1,84 @@
+package ibm;
+
+import java.util.ArrayList;
+
+public class RadiusQuery {			// Finds cells of certain types whose surface is within a distance of the surface of a cell. Candidates come from the model's AABB tree
+	public double dist;					// [m] Maximum distance between the surfaces
+	public double radiusMargin;			// [m] Extra search distance, needed if radii passed to SurfaceDistance() can be larger than the cells' current radii
+	Model model;
+	AABBTree tree;
+	boolean[] isType;					// Per cell type: are we looking for it?
+	AABBTree.Cursor cursor = new AABBTree.Cursor();
+	ericson.Result closest = new ericson.Result();
+
+	///////////////////////////////////////////////////////////////////
+
+	public RadiusQuery(Model model, int[] type, double dist, double radiusMargin) {
+		this.model = model;
+		this.dist = dist;
+		this.radiusMargin = radiusMargin;
+		isType = new boolean[model.NXType];
+		for(int ii=0; ii<type.length; ii++) 	isType[type[ii]] = true;
+		tree = model.CollisionTree();
+		tree.Update();
+	}
+
+	public int Count(int iCell) {			// Number of cells within dist of cell iCell in model.cellArray, including the cell itself if its type is searched for
+		Cell cell0 = model.cellArray.get(iCell);
+		int NCandidate = Candidates(iCell, cursor);
+		int N = 0;
+		for(int ic=0; ic<NCandidate; ic++) {
+			Cell cell1 = model.cellArray.get(cursor.hit[ic]);
+			if(SurfaceDistance(cell0, cell0.ballArray[0].radius, cell1, cell1.ballArray[0].radius, closest) < dist) 	N++;
+		}
+		return N;
+	}
+
+	public ArrayList<Cell> Find(int iCell) {	// The cells counted by Count(), in no particular order
+		Cell cell0 = model.cellArray.get(iCell);
+		int NCandidate = Candidates(iCell, cursor);
+		ArrayList<Cell> result = new ArrayList<Cell>();
+		for(int ic=0; ic<NCandidate; ic++) {
+			Cell cell1 = model.cellArray.get(cursor.hit[ic]);
+			if(SurfaceDistance(cell0, cell0.ballArray[0].radius, cell1, cell1.ballArray[0].radius, closest) < dist) 	result.add(cell1);
+		}
+		return result;
+	}
+
+	public int Candidates(int iCell, AABBTree.Cursor cursor) {	// Puts the indices of cells of the right type that might be within dist (plus radiusMargin) in cursor.hit, returns how many. Thread safe if each thread uses its own cursor
+		double[] box = new double[6];
+		CollisionGrid.CellBox(model.cellArray.get(iCell), 1.0, (dist+radiusMargin)*1.000001, box, 0);		// A little extra so that rounding can't lose cells at exactly dist
+		int NHit = tree.QueryIndex(box, 0, cursor);
+		int[] hit = cursor.hit;
+		int NCandidate = 0;
+		for(int ih=0; ih<NHit; ih++) {
+			if(isType[model.cellArray.get(hit[ih]).type]) 	hit[NCandidate++] = hit[ih];
+		}
+		return NCandidate;
+	}
+
+	public double SurfaceDistance(Cell cell0, double radius0, Cell cell1, double radius1, ericson.Result closest) {	// Distance between the surfaces of two cells with the given ball radii. Negative if they overlap. Thread safe if each thread uses its own closest
+		int shape0 = model.shapeX[cell0.type];
+		int shape1 = model.shapeX[cell1.type];
+		double R2 = radius0 + radius1;
+		if(shape0==0 && shape1==0) {
+			return cell0.ballArray[0].pos.minus( cell1.ballArray[0].pos ).norm() - R2;
+		} else if((shape0==1 || shape0==2) && (shape1==1 || shape1==2)) {
+			ericson.DetectCollision.LinesegLineseg(cell0.ballArray[0].pos, cell0.ballArray[1].pos, cell1.ballArray[0].pos, cell1.ballArray[1].pos, closest);
+			return closest.dist - R2;
+		} else {
+			Cell sphere, rod;
+			if(shape0==0 && (shape1==1 || shape1==2)) {
+				sphere = cell0;
+				rod = cell1;
+			} else if((shape0==1 || shape0==2) && shape1==0) {
+				sphere = cell1;
+				rod = cell0;
+			} else {
+				throw new IndexOutOfBoundsException("Unknown cell types: " + cell0.type + " and " + cell1.type);
+			}
+			ericson.DetectCollision.LinesegPoint(rod.ballArray[0].pos, rod.ballArray[1].pos, sphere.ballArray[0].pos, closest);
+			return closest.dist - R2;
+		}
+	}
+}
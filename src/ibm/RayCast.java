@@ -0,0 +1,116 @@
+package ibm;
+
+import java.util.Arrays;
+
+public class RayCast {					// Finds the first cell that a particle hits when it moves along a line towards a destination, as in Model.Attachment(). Candidates come from the model's AABB tree
+	public Cell firstCell;					// Results of the last Cast(), firstCell is null if nothing was hit
+	public Ball firstBall;
+	public Vector3d firstPos;				// Position of the particle when it touches firstCell
+	public double firstDist;				// [m] Distance of the hit from dest along the line
+	Model model;
+	AABBTree tree;
+	int[] stack = new int[64];
+	double[] stackExit = new double[64];	// Where the line leaves the box of the node on the stack
+	double[] range = new double[2];			// Part of the line inside a box, see Exit()
+	ericson.Result E = new ericson.Result();	// Closest points, see Test()
+
+	///////////////////////////////////////////////////////////////////
+
+	public RayCast(Model model) {
+		this.model = model;
+		tree = model.CollisionTree();
+		tree.Update();
+	}
+
+	public boolean Cast(Vector3d dest, Vector3d dirn, double radius, Cell exclude) {	// Particle with radius comes from far away along dirn (normalised) and moves to dest. Returns if it hits a cell other than exclude
+		firstCell = null;
+		firstDist = 0.0;
+		if(tree.root==-1)		return false;
+		final double reach = radius*1.000001;	// A little extra so that rounding can't lose cells at exactly the radius
+		int top = 0;
+		stack[top] = tree.root;
+		stackExit[top++] = Exit(tree.root, dest, dirn, reach);
+		while(top>0) {
+			int node = stack[--top];
+			if(stackExit[top] <= firstDist)		continue;		// Line misses the node, or anything the node contains is closer to dest than the best hit so far
+			if(tree.child0[node]==-1) {
+				if(tree.cell[node]!=exclude)		Test(tree.cell[node], dest, dirn, radius);
+			} else {
+				int c0 = tree.child0[node], c1 = tree.child1[node];
+				double exit0 = Exit(c0, dest, dirn, reach), exit1 = Exit(c1, dest, dirn, reach);
+				if(top+2>stack.length) {
+					stack = Arrays.copyOf(stack, 2*stack.length);
+					stackExit = Arrays.copyOf(stackExit, stack.length);
+				}
+				if(exit0 < exit1) {								// Child furthest from dest on top, so we find far hits first and skip more nodes
+					stack[top] = c0;		stackExit[top++] = exit0;
+					stack[top] = c1;		stackExit[top++] = exit1;
+				} else {
+					stack[top] = c1;		stackExit[top++] = exit1;
+					stack[top] = c0;		stackExit[top++] = exit0;
+				}
+			}
+		}
+		return firstCell!=null;
+	}
+
+	public boolean CastAll(Vector3d dest, Vector3d dirn, double radius, Cell exclude) {		// Same as Cast(), but tests all cells
+		firstCell = null;
+		firstDist = 0.0;
+		for(Cell cell : model.cellArray) {
+			if(cell!=exclude)		Test(cell, dest, dirn, radius);
+		}
+		return firstCell!=null;
+	}
+
+	void Test(Cell cell, Vector3d dest, Vector3d dirn, double radius) {		// Updates the result if the particle hits cell further from dest than the best hit so far
+		double endx = dest.x+dirn.x, endy = dest.y+dirn.y, endz = dest.z+dirn.z;
+		for(Ball ball : cell.ballArray) {
+			Vector3d pos = ball.pos;
+			ericson.DetectCollision.LinePoint(dest.x, dest.y, dest.z, endx, endy, endz, pos.x, pos.y, pos.z, E);		// sc is the distance from dest along the line, since dirn.norm() == 1
+			if(E.dist < radius+ball.radius && E.sc > firstDist) {
+				firstDist = E.sc;
+				firstCell = cell;
+				firstBall = ball;
+				firstPos = ball.pos.plus(dirn.times(radius+ball.radius));		// Position where the particle will attach after colliding
+			}
+		}
+		for(RodSpring spring : cell.rodSpringArray) {
+			Ball ball0 = spring.ballArray[0];
+			Vector3d pos0 = ball0.pos;
+			Vector3d pos1 = spring.ballArray[1].pos;
+			ericson.DetectCollision.LinesegLine(pos0.x, pos0.y, pos0.z, pos1.x, pos1.y, pos1.z, dest.x, dest.y, dest.z, endx, endy, endz, E);		// tc is the distance from dest along the line
+			if(E.dist < radius+ball0.radius && E.tc > firstDist) {
+				firstDist = E.tc;
+				firstCell = cell;
+				firstBall = ball0;												// Could also be ball1, but doesn't matter here
+				Vector3d c1 = new Vector3d(E.c1x, E.c1y, E.c1z);
+				Vector3d away;
+				if(E.sc==0.0 || E.sc==1.0)										// Otherwise, away will be null vector, so choose another direction
+					away = dirn;
+				else
+					away = new Vector3d(E.c2x, E.c2y, E.c2z).minus(c1).normalise();	// Vector pointing away from the collision
+				firstPos = c1.plus(away.times(radius+ball0.radius));			// The point on the path where the collision is closest, moving the particle away from there until it no longer overlaps
+			}
+		}
+	}
+
+	double Exit(int node, Vector3d dest, Vector3d dirn, double reach) {		// Distance from dest along dirn where the line leaves the box of node, grown by reach. Negative infinity if the line misses it
+		int o = 6*node;
+		double[] aabb = tree.aabb;
+		range[0] = -Double.MAX_VALUE;
+		range[1] = Double.MAX_VALUE;
+		if(!Slab(aabb[o  ]-reach, aabb[o+3]+reach, dest.x, dirn.x) ||
+				!Slab(aabb[o+1]-reach, aabb[o+4]+reach, dest.y, dirn.y) ||
+				!Slab(aabb[o+2]-reach, aabb[o+5]+reach, dest.z, dirn.z))		return Double.NEGATIVE_INFINITY;
+		return range[1];
+	}
+
+	boolean Slab(double lo, double hi, double p, double d) {		// Narrows range to the part of the line between lo and hi in one dimension. Returns false if nothing is left
+		if(d==0.0)		return p>=lo && p<=hi;
+		double t0 = (lo-p)/d, t1 = (hi-p)/d;
+		range[0] = Math.max(range[0], Math.min(t0, t1));
+		range[1] = Math.min(range[1], Math.max(t0, t1));
+		return range[0] <= range[1];
+	}
+}
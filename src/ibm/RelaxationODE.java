@@ -6,6 +6,20 @@ import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
 public class RelaxationODE implements FirstOrderDifferentialEquations {
 	Model model;
 	public int NStep, NAnchorBreak, NAnchorForm, NStickBreak, NStickForm, NFilBreak;
+	public int NReject;													// Solver steps rejected by error control
+	public int NFormBreak, NFormBreakSkip, NFormBreakMoved;				// FormBreak() checks done, skipped and done because a ball moved far, see Model.formBreakPolicy
+	int formBreakNStep;													// Steps and time since the last check
+	double formBreakTime;
+	double[] formBreakPos;												// Ball positions at the last check, null before the first
+	static final double radiusModifier = 1.01; 							// Multiplication factor for ball radii, maintaining a certain distance between balls
+	// Broadphase collision detection
+	Broadphase broadphase;
+	PairList pairs = new PairList();
+	double[] box = new double[0];
+	NeighbourList neighbourList;
+	ericson.Result closest = new ericson.Result();						// Closest points of two rods or a rod and a sphere, see CollisionForce()
+	ForceKernel kernel;													// Used instead of the Ball and Cell objects if model.forceKernel
+	double lengthScale;													// [m] Mean ball radius, see Tolerance()
 	
 	public RelaxationODE(Model model) {
 		this.model = model;
@@ -17,11 +31,67 @@ public class RelaxationODE implements FirstOrderDifferentialEquations {
 		this.NFilBreak = 0;
 	}
 	
+	public int NNeighbourBuild() {
+		if(kernel!=null)		return kernel.neighbourList==null ? 0 : kernel.neighbourList.NBuild;
+		return neighbourList==null ? 0 : neighbourList.NBuild;
+	}
+	
+	double MaxStiffness() {		// [N/m] Spring constant of the stiffest spring or contact. Rods only count as springs if they are not constraints or rigid
+		double Kr = model.rodConstraint || model.rigidRods ? 0.0 : model.Kr;
+		double K = Math.max(Math.max(model.Kc, model.Kw), Math.max(Kr, model.Kan));
+		for(double[] row : model.Ks) 	for(double Ks : row) 	K = Math.max(K, Ks);
+		return Math.max(K, Math.max(model.KfSphere, Math.max(model.KfRod[0], model.KfRod[1])));
+	}
+	
+	public double InitialStepSize() {		// Overdamped: relaxation time Kd/K of the stiffest spring. The integrator's own guess is far too large for an already relaxed colony, and its trial stages then throw balls away
+		return model.Kd/MaxStiffness();
+	}
+	
+	public void Tolerances(double[] absTol, double[] relTol) {		// Absolute and relative error tolerance of each state value, see Tolerance()
+		int NPerBall = model.overdamped ? 3 : 6;
+		for(int ii=0; ii<absTol.length; ii++) 	Tolerance(ii, ii%NPerBall>=3, absTol, relTol);
+	}
+	
+	void Tolerance(int ii, boolean speed, double[] absTol, double[] relTol) {		// ODETol, absolute and relative, for all values. With model.relaxationScaling, relaxationScaledTol in characteristic units instead: positions in the mean ball radius, absolute only as they have no natural origin, velocities in that radius per relaxationTimeStepdt, which is the velocity error that adds up to one radius over an interval
+		if(!model.relaxationScaling) {
+			absTol[ii] = relTol[ii] = model.ODETol;
+			return;
+		}
+		if(lengthScale==0.0) {
+			for(Ball ball : model.ballArray) 	lengthScale += ball.radius;
+			lengthScale /= model.ballArray.size();
+		}
+		absTol[ii] = model.relaxationScaledTol * (speed ? lengthScale/model.relaxationTimeStepdt : lengthScale);
+		relTol[ii] = speed ? model.relaxationScaledTol : 0.0;
+	}
+	
+	public void GetState(double[] y) {		// Initial state y from the Ball objects
+		model.GetRelaxationState(y);
+	}
+	
+	public void SetState(double[] y) {		// Ball objects from state y
+		model.SetRelaxationState(y);
+	}
+	
+	public void Synchronise() {		// Brings the Ball objects up to date with the last evaluation. Needed at step boundaries if forces are computed by the kernel
+		if(kernel!=null)		kernel.Synchronise();
+	}
+	
+	Broadphase Broadphase() {
+		if(broadphase==null)		broadphase = Broadphase.Create(model, 0.0);
+		return broadphase;
+	}
+	
 	public int getDimension() {
 		return model.ballArray.size()*6;
 	}
 	
 	public void computeDerivatives(double t, double[] y, double[] yDot) {	
+		if(model.forceKernel) {
+			if(kernel==null)		kernel = new ForceKernel(model, radiusModifier);
+			kernel.Derivatives(y, yDot);
+			return;
+		}
 		// Read data from y
 		for(int ii=0; ii<model.ballArray.size(); ii++) {
 			Ball ball = model.ballArray.get(ii);
@@ -36,93 +106,40 @@ public class RelaxationODE implements FirstOrderDifferentialEquations {
 			ball.force.z = 0;
 		}
 		// Collision force
-		final double radiusModifier = 1.01; 												// Multiplication factor for ball radii, maintaining a certain distance between balls
-		for(int iCell=0; iCell<model.cellArray.size(); iCell++) {
-			Cell cell0 = model.cellArray.get(iCell);
-			Ball c0b0 = cell0.ballArray[0];
-			for(int jCell=iCell+1; jCell<model.cellArray.size(); jCell++) { 		// Factorial elimination to optimise loop
-				Cell cell1 = model.cellArray.get(jCell);
-				Ball c1b0 = cell1.ballArray[0];
-				int shape0 = model.shapeX[cell0.type];
-				int shape1 = model.shapeX[cell1.type];
-				// Do a very simple, cheap collision detection
-				Vector3d dirn = c0b0.pos.minus(c1b0.pos);
-				double dist = dirn.norm();
-				final double maxCollDist = 								// The maximum distance between two overlapping cells can never be more than sum of:  
-						(Common.maxArray(model.lengthCellMax) 			// 1) length of the longest cell
-						+ Common.maxArray(model.radiusCellMax) * 2.0) 	// 2) twice the radius of the largest ball
-						* 2.0; 											// 3) whatever stretching can be observed due to links (e.g. factor 2, up for discussion)
-				// More accurate collision detection if overlap is possible
-				if(dist<maxCollDist) { 												// Balls are close enough that they could collide --> further investigate
-					double R2 = c0b0.radius + c1b0.radius; 							// We assume radius ball 0 and 1 are equal for all cells
-					// Ball-ball collision
-					if( shape0==0 && shape1==0) {
-						double d = R2*radiusModifier - dist;
-						if(d>0.0) {
-							// We have a collision
-							Vector3d Fs = dirn.normalise().times(model.Kc*d);
-							// Add force
-							c0b0.force = c0b0.force.plus(Fs);
-							c1b0.force = c1b0.force.minus(Fs);
-						}
-					// Rod-rod
-					} else if((shape0==1 || shape0==2) && (shape1==1 || shape1==2)) {
-						Ball c0b1 = cell0.ballArray[1];
-						Ball c1b1 = cell1.ballArray[1];
-						// calculate the distance between the segments
-						ericson.ReturnObject C = ericson.DetectCollision.LinesegLineseg(c0b0.pos, c0b1.pos, c1b0.pos, c1b1.pos);
-						Vector3d dP = C.dP;										// dP is vector from closest point 2 --> 1
-						dist = C.dist; 											// Make distance more accurate
-						double sc = C.sc;
-						double tc = C.tc;
-						double d = R2*radiusModifier - dist;					// d is the magnitude of the overlap vector, as defined in the IbM paper
-						if(d>0.0) {
-							double f = model.Kc/dist*d;
-							Vector3d Fs = dP.times(f);
-							// Add these elastic force to the cells
-							double sc1 = 1-sc;
-							double tc1 = 1-tc;
-							// both balls in 1st rod
-							c0b0.force = c0b0.force.plus(Fs.times(sc1));
-							c0b1.force = c0b1.force.plus(Fs.times(sc));
-							// both balls in 2nd rod
-							c1b0.force = c1b0.force.minus(Fs.times(tc1));
-							c1b1.force = c1b1.force.minus(Fs.times(tc));
-						}
-						// Ball-rod (or rod-ball) collision
-					} else if(shape0==1 || shape0==2 || shape1==1 || shape1==2 ) {
-						// Find out which cell is rod, which is ball, and assign
-						Ball ballb0, rodb0, rodb1;
-						if(shape0==0) {
-							ballb0 = c0b0;
-							rodb0 = c1b0;
-							rodb1 = cell1.ballArray[1];
-						} else {
-							ballb0 = c1b0;
-							rodb0 = c0b0;
-							rodb1 = cell0.ballArray[1];
-						}
-						ericson.ReturnObject C = ericson.DetectCollision.LinesegPoint(rodb0.pos, rodb1.pos, ballb0.pos);
-						Vector3d dP = C.dP;
-						dist = C.dist;											// Make distance more accurate
-						double sc = C.sc;
-						double d = R2*radiusModifier - dist;					// d is the magnitude of the overlap vector, as defined in the IbM paper
-						if(d>0.0) {
-							double f = model.Kc/dist*d;
-							Vector3d Fs = dP.times(f);
-							// Add these elastic force to the cells
-							// ball in sphere
-							ballb0.force = ballb0.force.minus(Fs);
-							// both balls in rod
-							rodb0.force = rodb0.force.plus(Fs.times(1.0-sc)); 
-							rodb1.force = rodb1.force.plus(Fs.times(sc));
-						}	
-					// Invalid cells
-					} else {
-						throw new RuntimeException("Unknown cell type");
+		if(model.broadphase==0) {														// Brute force, check all pairs. Reference for the broadphase methods below
+			final double maxCollDist = 								// The maximum distance between two overlapping cells can never be more than sum of:  
+					(Common.maxArray(model.lengthCellMax) 			// 1) length of the longest cell
+					+ Common.maxArray(model.radiusCellMax) * 2.0) 	// 2) twice the radius of the largest ball
+					* 2.0; 											// 3) whatever stretching can be observed due to links (e.g. factor 2, up for discussion)
+			for(int iCell=0; iCell<model.cellArray.size(); iCell++) {
+				Cell cell0 = model.cellArray.get(iCell);
+				Ball c0b0 = cell0.ballArray[0];
+				for(int jCell=iCell+1; jCell<model.cellArray.size(); jCell++) { 		// Factorial elimination to optimise loop
+					Cell cell1 = model.cellArray.get(jCell);
+					Ball c1b0 = cell1.ballArray[0];
+					// Do a very simple, cheap collision detection
+					double dist = c0b0.pos.minus(c1b0.pos).norm();
+					// More accurate collision detection if overlap is possible
+					if(dist<maxCollDist) { 											// Balls are close enough that they could collide --> further investigate
+						CollisionForce(cell0, cell1);
 					}
 				}
 			}
+		} else {																		// Only check pairs of cells with overlapping bounding boxes
+			PairList pairs = this.pairs;
+			if(model.neighbourList) {													// Verlet neighbour list, reused over solver stages until balls have moved too far 
+				if(neighbourList==null)		neighbourList = new NeighbourList(model.neighbourSkin);
+				neighbourList.Update(model, radiusModifier);
+				pairs = neighbourList.pairs;
+			} else {																	// Search pairs every call
+				int NCell = model.cellArray.size();
+				if(box.length < 6*NCell)		box = new double[6*NCell];
+				for(int iCell=0; iCell<NCell; iCell++) 	CollisionGrid.CellBox(model.cellArray.get(iCell), radiusModifier, 0.0, box, 6*iCell);
+				Broadphase().FindPairs(box, NCell, pairs);
+			}
+			for(int ii=0; ii<pairs.N; ii++) {											// Pairs are in the same order as the brute force loop, so forces are summed in the same order
+				CollisionForce(model.cellArray.get(pairs.cell0[ii]), model.cellArray.get(pairs.cell1[ii]));
+			}
 		}
 		// Calculate gravity+buoyancy, normal force and drag
 		for(Ball ball : model.ballArray) {
@@ -229,4 +246,80 @@ public class RelaxationODE implements FirstOrderDifferentialEquations {
 			yDot[6*ii+5] = ball.force.z/m;
 		}
 	}
+	
+	void CollisionForce(Cell cell0, Cell cell1) {										// Narrowphase: adds the collision force between two cells, if they overlap
+		Ball c0b0 = cell0.ballArray[0];
+		Ball c1b0 = cell1.ballArray[0];
+		int shape0 = model.shapeX[cell0.type];
+		int shape1 = model.shapeX[cell1.type];
+		Vector3d dirn = c0b0.pos.minus(c1b0.pos);
+		double dist = dirn.norm();
+		double R2 = c0b0.radius + c1b0.radius; 								// We assume radius ball 0 and 1 are equal for all cells
+		// Ball-ball collision
+		if( shape0==0 && shape1==0) {
+			double d = R2*radiusModifier - dist;
+			if(d>0.0) {
+				// We have a collision
+				Vector3d Fs = dirn.normalise().times(model.Kc*d);
+				// Add force
+				c0b0.force = c0b0.force.plus(Fs);
+				c1b0.force = c1b0.force.minus(Fs);
+			}
+		// Rod-rod
+		} else if((shape0==1 || shape0==2) && (shape1==1 || shape1==2)) {
+			Ball c0b1 = cell0.ballArray[1];
+			Ball c1b1 = cell1.ballArray[1];
+			// calculate the distance between the segments
+			ericson.Result C = closest;
+			ericson.DetectCollision.LinesegLineseg(c0b0.pos, c0b1.pos, c1b0.pos, c1b1.pos, C);
+			dist = C.dist; 											// Make distance more accurate
+			double sc = C.sc;
+			double tc = C.tc;
+			double d = R2*radiusModifier - dist;					// d is the magnitude of the overlap vector, as defined in the IbM paper
+			if(d>0.0) {
+				double f = model.Kc/dist*d;
+				Vector3d Fs = new Vector3d(C.dPx, C.dPy, C.dPz).times(f);	// dP is vector from closest point 2 --> 1
+				// Add these elastic force to the cells
+				double sc1 = 1-sc;
+				double tc1 = 1-tc;
+				// both balls in 1st rod
+				c0b0.force = c0b0.force.plus(Fs.times(sc1));
+				c0b1.force = c0b1.force.plus(Fs.times(sc));
+				// both balls in 2nd rod
+				c1b0.force = c1b0.force.minus(Fs.times(tc1));
+				c1b1.force = c1b1.force.minus(Fs.times(tc));
+			}
+			// Ball-rod (or rod-ball) collision
+		} else if(shape0==1 || shape0==2 || shape1==1 || shape1==2 ) {
+			// Find out which cell is rod, which is ball, and assign
+			Ball ballb0, rodb0, rodb1;
+			if(shape0==0) {
+				ballb0 = c0b0;
+				rodb0 = c1b0;
+				rodb1 = cell1.ballArray[1];
+			} else {
+				ballb0 = c1b0;
+				rodb0 = c0b0;
+				rodb1 = cell0.ballArray[1];
+			}
+			ericson.Result C = closest;
+			ericson.DetectCollision.LinesegPoint(rodb0.pos, rodb1.pos, ballb0.pos, C);
+			dist = C.dist;											// Make distance more accurate
+			double sc = C.sc;
+			double d = R2*radiusModifier - dist;					// d is the magnitude of the overlap vector, as defined in the IbM paper
+			if(d>0.0) {
+				double f = model.Kc/dist*d;
+				Vector3d Fs = new Vector3d(C.dPx, C.dPy, C.dPz).times(f);
+				// Add these elastic force to the cells
+				// ball in sphere
+				ballb0.force = ballb0.force.minus(Fs);
+				// both balls in rod
+				rodb0.force = rodb0.force.plus(Fs.times(1.0-sc)); 
+				rodb1.force = rodb1.force.plus(Fs.times(sc));
+			}	
+		// Invalid cells
+		} else {
+			throw new RuntimeException("Unknown cell type");
+		}
+	}
 }
@@ -0,0 +1,79 @@
+package ibm;
+
+public class RespaRelaxation {		// Multiple time stepping (r-RESPA) for the inertial relaxation ODE. Contact, wall, gravity and electrostatic forces are applied as kicks every outer step, springs and damping are sub-cycled with velocity Verlet in between. Fixed steps, no error control. With model.rodConstraint, rods are kept at their rest length with RATTLE instead of their spring. Always uses ForceKernel
+	Model model;
+	RelaxationODE ode;
+	ForceKernel kernel;
+	double[] slow, fast;			// [N] Forces, 3 per ball
+	double[] decay;					// Damping over half an inner step, per ball
+
+	///////////////////////////////////////////////////////////////////
+
+	public RespaRelaxation(Model model, RelaxationODE ode) {
+		if(model.overdamped) 	throw new RuntimeException("Multiple time stepping needs inertia, overdamped must be false");
+		this.model = model;
+		this.ode = ode;
+		if(ode.kernel==null) 	ode.kernel = new ForceKernel(model, RelaxationODE.radiusModifier);
+		kernel = ode.kernel;
+		slow = new double[3*kernel.NBall];
+		fast = new double[3*kernel.NBall];
+		decay = new double[kernel.NBall];
+	}
+
+	public void Integrate(double[] y, double tEnd) {		// Integrates y (6 values per ball) from 0 to tEnd in steps of at most model.respaTimeStep. Calls model.RelaxationStep() after each outer step
+		int NStep = (int)Math.ceil(tEnd/model.respaTimeStep - 1e-9);
+		double H = tEnd/NStep;
+		double h = H/model.respaNInner;
+		for(int ii=0; ii<kernel.NBall; ii++) 	decay[ii] = Math.exp(-model.Kd*0.5*h/kernel.mass[ii]);
+		double[] pos = kernel.pos, vel = kernel.vel;
+		kernel.Read(y);
+		Slow();
+		kernel.SpringForces(fast);
+		for(int iStep=0; iStep<NStep; iStep++) {
+			Kick(slow, 0.5*H);
+			for(int iInner=0; iInner<model.respaNInner; iInner++) {
+				Damp();
+				Kick(fast, 0.5*h);
+				if(model.rodConstraint) 	kernel.RattleRods(vel);
+				for(int ii=0; ii<3*kernel.NBall; ii++) 	pos[ii] += h*vel[ii];
+				if(model.rodConstraint) 	kernel.ShakeRods(vel, h);
+				kernel.SpringForces(fast);
+				Kick(fast, 0.5*h);
+				Damp();
+			}
+			Slow();
+			Kick(slow, 0.5*H);
+			if(model.rodConstraint) 	kernel.RattleRods(vel);
+			for(int ii=0; ii<3*kernel.NBall; ii++) 	kernel.force[ii] = slow[ii] + fast[ii] - model.Kd*vel[ii];		// Total force, for the Ball objects
+			model.RelaxationStep(ode, H, iStep==NStep-1);
+			if(kernel.springs.version!=model.SpringVersion()) 	kernel.SpringForces(fast);		// Springs were formed or broken
+		}
+		for(int ii=0; ii<kernel.NBall; ii++) {
+			System.arraycopy(pos, 3*ii, y, 6*ii, 3);
+			System.arraycopy(vel, 3*ii, y, 6*ii+3, 3);
+			for(int jj=3*ii; jj<3*ii+3; jj++) 	if(Double.isNaN(pos[jj])) 	throw new RuntimeException("Multiple time stepping diverged, reduce respaTimeStep or increase respaNInner");
+		}
+	}
+
+	void Slow() {
+		kernel.SlowForces();
+		System.arraycopy(kernel.force, 0, slow, 0, 3*kernel.NBall);
+	}
+
+	void Kick(double[] F, double dt) {		// v += dt*F/m
+		for(int ii=0; ii<kernel.NBall; ii++) {
+			double f = dt/kernel.mass[ii];
+			kernel.vel[3*ii  ] += f*F[3*ii  ];
+			kernel.vel[3*ii+1] += f*F[3*ii+1];
+			kernel.vel[3*ii+2] += f*F[3*ii+2];
+		}
+	}
+
+	void Damp() {							// Exact solution of m dv/dt = -Kd v over half an inner step
+		for(int ii=0; ii<kernel.NBall; ii++) {
+			kernel.vel[3*ii  ] *= decay[ii];
+			kernel.vel[3*ii+1] *= decay[ii];
+			kernel.vel[3*ii+2] *= decay[ii];
+		}
+	}
+}
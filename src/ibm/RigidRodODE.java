@@ -0,0 +1,184 @@
+package ibm;
+
+import java.util.Arrays;
+
+public class RigidRodODE extends RelaxationODE {	// Relaxation with each rod cell as one rigid capsule instead of two balls joined by a RodSpring
+	int NRod, NOther;
+	int[] rodBall0, rodBall1;		// Kernel ball indices of each rod
+	int[] otherBall;				// Balls of spheres
+	double[] a0, a1;				// [m] Distance from the centre of mass to ball0 and ball1 of each rod. From the rest length, so Cell.SetAmount() still grows the rod between relaxations
+	double[] rodMass;				// [kg]
+	int NPerRod, NPerBall;			// Values in the state vector. Per rod: centre of mass, its velocity, direction and angular velocity, the last two times the length so that all are in m or m/s. Per other ball as in RelaxationODE
+	double[] u = new double[3], w = new double[3], wu = new double[3], F = new double[3], T = new double[3], g = new double[3];		// Scratch
+
+	public RigidRodODE(Model model) {
+		super(model);
+		if(model.relaxationSolver!=0) 	throw new RuntimeException("Rigid rods need relaxationSolver 0");
+		kernel = new ForceKernel(model, radiusModifier);
+		NRod = model.rodSpringArray.size();
+		NOther = kernel.NBall - 2*NRod;
+		rodBall0 = new int[NRod];		rodBall1 = new int[NRod];
+		a0 = new double[NRod];			a1 = new double[NRod];
+		rodMass = new double[NRod];
+		boolean[] inRod = new boolean[kernel.NBall];
+		for(int iRod=0; iRod<NRod; iRod++) {
+			RodSpring rod = model.rodSpringArray.get(iRod);
+			int i0 = kernel.ballIndex.get(rod.ballArray[0]), i1 = kernel.ballIndex.get(rod.ballArray[1]);
+			rodBall0[iRod] = i0;		rodBall1[iRod] = i1;
+			inRod[i0] = inRod[i1] = true;
+			double m0 = kernel.mass[i0], m1 = kernel.mass[i1];
+			rodMass[iRod] = m0+m1;
+			a0[iRod] = m1/(m0+m1)*rod.restLength;
+			a1[iRod] = m0/(m0+m1)*rod.restLength;
+		}
+		otherBall = new int[NOther];
+		for(int ii=0, jj=0; ii<kernel.NBall; ii++) 	if(!inRod[ii]) 	otherBall[jj++] = ii;
+		NPerRod = model.overdamped ? 6 : 12;
+		NPerBall = model.overdamped ? 3 : 6;
+	}
+
+	public int getDimension() {
+		return NRod*NPerRod + NOther*NPerBall;
+	}
+
+	public void computeDerivatives(double t, double[] y, double[] yDot) {		// ForceKernel's forces on the balls at the rod ends, reduced to a force and a torque about the centre
+		Read(y);
+		if(model.overdamped) 	Arrays.fill(kernel.vel, 0, 3*kernel.NBall, 0.0);		// So no damping force is added
+		kernel.Forces();
+		double[] vel = kernel.vel, force = kernel.force;
+		for(int iRod=0; iRod<NRod; iRod++) {
+			int o = NPerRod*iRod;
+			int i0 = 3*rodBall0[iRod], i1 = 3*rodBall1[iRod];
+			Direction(y, o+(model.overdamped ? 3 : 6), u);
+			for(int kk=0; kk<3; kk++) 	F[kk] = force[i0+kk] + force[i1+kk];
+			for(int kk=0; kk<3; kk++) 	g[kk] = a1[iRod]*force[i1+kk] - a0[iRod]*force[i0+kk];
+			Cross(u, g, T);												// Torque about the centre of mass, perpendicular to the rod
+			if(model.overdamped) {										// Drag Kd on each ball: solve F = Kd*(2V + d w x u) and T = Kd*(d u x V + (a0^2+a1^2) w) for V and w, with d = a1-a0
+				double d = a1[iRod]-a0[iRod], L = a0[iRod]+a1[iRod];
+				Cross(u, F, g);
+				for(int kk=0; kk<3; kk++) 	w[kk] = (T[kk] - 0.5*d*g[kk]) / (model.Kd*0.5*L*L);
+				Cross(w, u, wu);
+				for(int kk=0; kk<3; kk++) {
+					yDot[o+kk] = 0.5*(F[kk]/model.Kd - d*wu[kk]);		// Velocity of the centre
+					yDot[o+3+kk] = L*wu[kk];
+					vel[i0+kk] = yDot[o+kk] - a0[iRod]*wu[kk];			// For the Ball objects
+					vel[i1+kk] = yDot[o+kk] + a1[iRod]*wu[kk];
+				}
+			} else {
+				double I = kernel.mass[rodBall0[iRod]]*a0[iRod]*a0[iRod] + kernel.mass[rodBall1[iRod]]*a1[iRod]*a1[iRod];		// Moment of inertia about any axis across the rod
+				double L = a0[iRod]+a1[iRod];
+				Perpendicular(y, o+9, u, L, w);
+				Cross(w, u, wu);
+				for(int kk=0; kk<3; kk++) {
+					yDot[o+kk] = y[o+3+kk];
+					yDot[o+3+kk] = F[kk]/rodMass[iRod];
+					yDot[o+6+kk] = L*wu[kk];
+					yDot[o+9+kk] = L*T[kk]/I;								// The rod has no inertia about its own axis, so w stays perpendicular to it
+				}
+			}
+		}
+		int o = NPerRod*NRod;
+		for(int jj=0; jj<NOther; jj++) {
+			int ii = otherBall[jj];
+			for(int kk=0; kk<3; kk++) {
+				if(model.overdamped) {
+					vel[3*ii+kk] = force[3*ii+kk]/model.Kd;
+					yDot[o+kk] = vel[3*ii+kk];
+				} else {
+					yDot[o+kk] = vel[3*ii+kk];
+					yDot[o+3+kk] = force[3*ii+kk]/kernel.mass[ii];
+				}
+			}
+			o += NPerBall;
+		}
+	}
+
+	void Read(double[] y) {			// Ball positions and, unless overdamped, velocities in the kernel from state y
+		double[] pos = kernel.pos, vel = kernel.vel;
+		for(int iRod=0; iRod<NRod; iRod++) {
+			int o = NPerRod*iRod;
+			int i0 = 3*rodBall0[iRod], i1 = 3*rodBall1[iRod];
+			Direction(y, o+(model.overdamped ? 3 : 6), u);
+			for(int kk=0; kk<3; kk++) {
+				pos[i0+kk] = y[o+kk] - a0[iRod]*u[kk];
+				pos[i1+kk] = y[o+kk] + a1[iRod]*u[kk];
+			}
+			if(model.overdamped) 	continue;
+			Perpendicular(y, o+9, u, a0[iRod]+a1[iRod], w);
+			Cross(w, u, wu);
+			for(int kk=0; kk<3; kk++) {
+				vel[i0+kk] = y[o+3+kk] - a0[iRod]*wu[kk];
+				vel[i1+kk] = y[o+3+kk] + a1[iRod]*wu[kk];
+			}
+		}
+		int o = NPerRod*NRod;
+		for(int jj=0; jj<NOther; jj++) {
+			int ii = otherBall[jj];
+			System.arraycopy(y, o, pos, 3*ii, 3);
+			if(!model.overdamped) 	System.arraycopy(y, o+3, vel, 3*ii, 3);
+			o += NPerBall;
+		}
+	}
+
+	public void Tolerances(double[] absTol, double[] relTol) {		// Direction and angular velocity are in m and m/s like position and velocity, see Tolerance()
+		for(int ii=0; ii<NPerRod*NRod; ii++) 	Tolerance(ii, !model.overdamped && (ii%NPerRod)/3%2==1, absTol, relTol);
+		for(int ii=NPerRod*NRod; ii<absTol.length; ii++) 	Tolerance(ii, (ii-NPerRod*NRod)%NPerBall>=3, absTol, relTol);
+	}
+
+	public void GetState(double[] y) {		// Rods from their balls: centre and velocity of mass, direction, and the angular velocity of the balls' relative motion across the rod. The balls need not be at the rest length
+		for(int iRod=0; iRod<NRod; iRod++) {
+			int o = NPerRod*iRod;
+			Ball ball0 = model.ballArray.get(rodBall0[iRod]), ball1 = model.ballArray.get(rodBall1[iRod]);
+			double m0 = kernel.mass[rodBall0[iRod]], m1 = kernel.mass[rodBall1[iRod]];
+			Vector3d r = ball1.pos.minus(ball0.pos);
+			Vector3d c = ball0.pos.times(m0).plus(ball1.pos.times(m1)).times(1.0/(m0+m1));
+			double L = a0[iRod]+a1[iRod];
+			Vector3d dir = r.times(L/r.norm());
+			y[o] = c.x;		y[o+1] = c.y;		y[o+2] = c.z;
+			if(model.overdamped) {
+				y[o+3] = dir.x;		y[o+4] = dir.y;		y[o+5] = dir.z;
+				continue;
+			}
+			Vector3d V = ball0.vel.times(m0).plus(ball1.vel.times(m1)).times(1.0/(m0+m1));
+			Vector3d omega = r.cross(ball1.vel.minus(ball0.vel)).times(L/r.dot(r));
+			y[o+3] = V.x;		y[o+4] = V.y;		y[o+5] = V.z;
+			y[o+6] = dir.x;		y[o+7] = dir.y;		y[o+8] = dir.z;
+			y[o+9] = omega.x;	y[o+10] = omega.y;	y[o+11] = omega.z;
+		}
+		int o = NPerRod*NRod;
+		for(int jj=0; jj<NOther; jj++) {
+			Ball ball = model.ballArray.get(otherBall[jj]);
+			y[o] = ball.pos.x;		y[o+1] = ball.pos.y;		y[o+2] = ball.pos.z;
+			if(!model.overdamped) {
+				y[o+3] = ball.vel.x;	y[o+4] = ball.vel.y;	y[o+5] = ball.vel.z;
+			}
+			o += NPerBall;
+		}
+	}
+
+	public void SetState(double[] y) {		// Ball objects from state y, rods at their rest length
+		Read(y);
+		for(int ii=0; ii<kernel.NBall; ii++) {
+			Ball ball = model.ballArray.get(ii);
+			ball.pos.x = kernel.pos[3*ii];		ball.pos.y = kernel.pos[3*ii+1];		ball.pos.z = kernel.pos[3*ii+2];
+			if(model.overdamped) 	continue;
+			ball.vel.x = kernel.vel[3*ii];		ball.vel.y = kernel.vel[3*ii+1];		ball.vel.z = kernel.vel[3*ii+2];
+		}
+	}
+
+	static void Direction(double[] y, int o, double[] u) {		// Unit vector of y[o] to y[o+2]. The integrator does not keep its length
+		double n = Math.sqrt(y[o]*y[o] + y[o+1]*y[o+1] + y[o+2]*y[o+2]);
+		u[0] = y[o]/n;		u[1] = y[o+1]/n;		u[2] = y[o+2]/n;
+	}
+
+	static void Perpendicular(double[] y, int o, double[] u, double L, double[] w) {		// Part of y[o] to y[o+2] perpendicular to unit vector u, divided by L
+		double p = y[o]*u[0] + y[o+1]*u[1] + y[o+2]*u[2];
+		w[0] = (y[o]-p*u[0])/L;		w[1] = (y[o+1]-p*u[1])/L;		w[2] = (y[o+2]-p*u[2])/L;
+	}
+
+	static void Cross(double[] a, double[] b, double[] c) {		// c = a x b
+		c[0] = a[1]*b[2] - a[2]*b[1];
+		c[1] = a[2]*b[0] - a[0]*b[2];
+		c[2] = a[0]*b[1] - a[1]*b[0];
+	}
+}
@@ -34,17 +34,20 @@ public class RodSpring extends Spring {
 		Cell cell0 = ballArray[0].cell;
 		final Model model = cell0.model;
 		restLength = RestLength(ball0.radius, cell0.GetAmount(), cell0.type, model);
+		model.SpringsChanged();
 	}
 
 	public void ResetK() {
 		final Model model = ballArray[0].cell.model;
 		this.K = model.Kr;
+		model.SpringsChanged();
 	}
 	
 	public int Break() {
 		Model model = ballArray[0].cell.model;
 		boolean isRemovedModel = model.rodSpringArray.remove(this);
 		boolean isRemovedCell = this.ballArray[0].cell.rodSpringArray.remove(this);
+		model.SpringsChanged();
 		if(isRemovedModel && isRemovedCell) {
 			return 1;
 		}
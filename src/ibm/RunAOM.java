@@ -220,7 +220,7 @@ public class RunAOM extends Run {		// simulation == 4
 			// Divide marked cells
 			int NFil = 0; int NBranch = 0;													// Keep track of how many filament springs and how many new branches we make
 			for(Cell mother : dividingCellArray) {
-				Cell daughter = model.DivideCell(mother);
+				Cell daughter = model.DivideCell(mother, mother==dividingCellArray.get(0));	// Collision tree only needs a full update before the first division
 				int shapeMother = model.shapeX[mother.type];
 				if(mother.filament) {
 					if(shapeMother==0) {
@@ -266,22 +266,22 @@ public class RunAOM extends Run {		// simulation == 4
 			// Relaxation
 			int relaxationNIter = (int) (model.relaxationTimeStep/model.relaxationTimeStepdt);
 			model.Write("Starting relaxation calculations","iter"); 
-			int NAnchorBreak = 0, NAnchorForm = 0, NStickBreak = 0, NStickForm = 0, NFilBreak = 0;
-			for(int ir=0; ir<relaxationNIter; ir++) {
-				int[] relaxationOut = model.Relaxation();
-				int nstp 	=  relaxationOut[0]; 
-				NAnchorBreak+= relaxationOut[1];
-				NAnchorForm	+= relaxationOut[2];
-				NStickBreak += relaxationOut[3];
-				NStickForm 	+= relaxationOut[4];
-				NFilBreak 	+= relaxationOut[5];
-				model.relaxationIter++;
-				model.relaxationTime += model.relaxationTimeStepdt;
-				model.Write("    Relaxation finished in " + nstp + " solver steps","iter");
-				// And finally: save stuff
-				model.Save();
-				ser2mat.Convert(model);
-			}
+			int[] relaxationSum = model.Relaxation(relaxationNIter, new Model.RelaxationOutput() {
+				public void Output(int[] relaxationOut) {
+					model.Write("    Relaxation finished in " + relaxationOut[0] + " solver steps (" + relaxationOut[10] + " rejected), " + relaxationOut[6] + " neighbour list builds, " + relaxationOut[7] + " spring checks (" + relaxationOut[8] + " skipped, " + relaxationOut[9] + " after displacement)","iter");
+					// Throw warning if cells are overlapping
+					if(model.overlapCheck) {
+						PairList overlapPairs = model.DetectCollisionCellPairs(1.01);
+						if(overlapPairs.N>0) {
+							model.Write("    Overlapping cells detected: " + model.CollisionString(overlapPairs), "warning");
+						}
+					}
+					// And finally: save stuff
+					model.Save();
+					ser2mat.Convert(model);
+				}
+			});
+			int NAnchorBreak = relaxationSum[1], NAnchorForm = relaxationSum[2], NStickBreak = relaxationSum[3], NStickForm = relaxationSum[4], NFilBreak = relaxationSum[5];
 			model.Write("Anchor springs broken/formed: " + NAnchorBreak + "/" + NAnchorForm + ", net " + (NAnchorForm-NAnchorBreak) + ", total " + model.anchorSpringArray.size(), "iter");
 			model.Write("Filament springs broken: "      + NFilBreak          														+ ", total " + model.filSpringArray.size(), "iter");
 			model.Write("Stick springs broken/formed: "  + NStickBreak  + "/" + NStickForm  + ", net " + (NStickForm-NStickBreak) 	+ ", total " + model.stickSpringArray.size(), "iter");
@@ -0,0 +1,100 @@
+package ibm;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+public class SpringTable {				// All Hookean springs of the model in flat arrays: rods, anchors, sticks and filaments, in that order. Balls are indices in model.ballArray
+	public int N;							// Number of springs
+	public int NRod, NAnchor, NStick, NFil;
+	public int[] ball0 = new int[0];
+	public int[] ball1 = new int[0];		// -1 for anchors
+	public double[] K = new double[0];
+	public double[] restLength = new double[0];
+	public double[] anchorPoint = new double[0];	// 3 per spring, only used for anchors
+	public boolean[] gliding = new boolean[0];
+	public int version = -1;				// Model.SpringVersion() when this was built
+	// Springs per ball, see BuildBallTable()
+	int[] ballSpring0, ballSpring;
+
+	///////////////////////////////////////////////////////////////////
+
+	public void Build(Model model, IdentityHashMap<Ball,Integer> ballIndex) {		// Copies the springs from the model
+		NRod = model.rodSpringArray.size();
+		NAnchor = model.anchorSpringArray.size();
+		NStick = model.stickSpringArray.size();
+		NFil = model.filSpringArray.size();
+		N = NRod+NAnchor+NStick+NFil;
+		if(K.length < N) {
+			int size = Math.max(N, 2*K.length);
+			ball0 = new int[size];				ball1 = new int[size];
+			K = new double[size];				restLength = new double[size];
+			anchorPoint = new double[3*size];	gliding = new boolean[size];
+		}
+		int ii = 0;
+		ii = Add(model.rodSpringArray, ballIndex, ii);
+		for(AnchorSpring anchor : model.anchorSpringArray) {
+			ball0[ii] = ballIndex.get(anchor.ballArray[0]);
+			ball1[ii] = -1;
+			K[ii] = anchor.K;
+			restLength[ii] = anchor.restLength;
+			anchorPoint[3*ii  ] = anchor.anchorPoint.x;
+			anchorPoint[3*ii+1] = anchor.anchorPoint.y;
+			anchorPoint[3*ii+2] = anchor.anchorPoint.z;
+			gliding[ii] = anchor.gliding;
+			ii++;
+		}
+		ii = Add(model.stickSpringArray, ballIndex, ii);
+		Add(model.filSpringArray, ballIndex, ii);
+		version = model.SpringVersion();
+		ballSpring = null;
+	}
+
+	int Add(ArrayList<? extends Spring> array, IdentityHashMap<Ball,Integer> ballIndex, int ii) {
+		for(Spring spring : array) {
+			ball0[ii] = ballIndex.get(spring.ballArray[0]);
+			ball1[ii] = ballIndex.get(spring.ballArray[1]);
+			K[ii] = spring.K;
+			restLength[ii] = spring.restLength;
+			gliding[ii] = false;
+			ii++;
+		}
+		return ii;
+	}
+
+	public void Force(double[] pos, int ii, double[] F, int o) {		// Hooke's law: force of spring ii on ball0 (minus that on ball1), written to F[o], F[o+1] and F[o+2]
+		int i0 = 3*ball0[ii], i1 = 3*ball1[ii];
+		double diffx, diffy, diffz;
+		if(i1>=0) {
+			diffx = pos[i1  ] - pos[i0  ];
+			diffy = pos[i1+1] - pos[i0+1];
+			diffz = pos[i1+2] - pos[i0+2];
+		} else if(gliding[ii]) {
+			diffx = 0.0;		diffy = 0.0;		diffz = -1.0*pos[i0+2];
+		} else {
+			diffx = anchorPoint[3*ii  ] - pos[i0  ];
+			diffy = anchorPoint[3*ii+1] - pos[i0+1];
+			diffz = anchorPoint[3*ii+2] - pos[i0+2];
+		}
+		double dn = Math.sqrt(diffx*diffx+diffy*diffy+diffz*diffz);
+		double f = K[ii]/dn * (dn - restLength[ii]);
+		F[o  ] = diffx*f;
+		F[o+1] = diffy*f;
+		F[o+2] = diffz*f;
+	}
+
+	void BuildBallTable(int NBall) {	// Springs per ball, in table order. Entries are 2*spring for ball0 and 2*spring+1 for ball1 of the spring. Spring entries of ball ii are ballSpring[ballSpring0[ii]] to ballSpring[ballSpring0[ii+1]-1]
+		ballSpring0 = new int[NBall+1];
+		for(int ii=0; ii<N; ii++) {
+			ballSpring0[ball0[ii]+1]++;
+			if(ball1[ii]>=0) 	ballSpring0[ball1[ii]+1]++;
+		}
+		for(int ii=0; ii<NBall; ii++) 	ballSpring0[ii+1] += ballSpring0[ii];
+		ballSpring = new int[ballSpring0[NBall]];
+		int[] next = new int[NBall];
+		System.arraycopy(ballSpring0, 0, next, 0, NBall);
+		for(int ii=0; ii<N; ii++) {
+			ballSpring[next[ball0[ii]]++] = 2*ii;
+			if(ball1[ii]>=0) 	ballSpring[next[ball1[ii]]++] = 2*ii+1;
+		}
+	}
+}
@@ -32,6 +32,7 @@ public class StickSpring extends Spring {
 		Ball ball0 = ballArray[0];
 		Ball ball1 = ballArray[1];
 		restLength = RestLength(ball0.pos, ball1.pos, ball0.radius, ball1.radius);
+		ballArray[0].cell.model.SpringsChanged();
 	}
 	
 	public void ResetK() {
@@ -47,6 +48,7 @@ public class StickSpring extends Spring {
 		else throw new IndexOutOfBoundsException("Cell types: " + cell0.type + " and " + cell1.type);
 		
 		K = model.Ks[cell0.type][cell1.type]/springDiv;
+		model.SpringsChanged();
 	}
 	
 	public int Break() {
@@ -66,6 +68,7 @@ public class StickSpring extends Spring {
 			cell1.stickSpringArray.remove(sibling);
 			count += (model.stickSpringArray.remove(sibling))?1:0;
 		}
+		model.SpringsChanged();
 		return count;
 	}
 	
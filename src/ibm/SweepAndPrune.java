@@ -0,0 +1,66 @@
+package ibm;
+
+import java.util.Arrays;
+
+public class SweepAndPrune extends Broadphase {	// Sort and sweep broadphase. Sorts the boxes along the axis in which the colony is widest, then only compares boxes whose ranges along that axis overlap. Needs no tuning
+	int[] order = new int[0];			// Cells sorted by the lower bound of their box along the sweep axis
+	int[] scratch = new int[0];			// For merging in Sort()
+	long[] found = new long[16];		// Pairs found in the sweep, as ii*NCell+jj
+	int axis;
+
+	///////////////////////////////////////////////////////////////////
+
+	public void FindPairs(double[] box, int NCell, PairList pairs) {
+		pairs.Clear();
+		if(NCell<2)		return;
+		// Sweep along the axis with the largest spread of box centres
+		double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+		double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+		for(int ii=0; ii<NCell; ii++) {
+			for(int dim=0; dim<3; dim++) {
+				double c = box[6*ii+dim] + box[6*ii+dim+3];
+				min[dim] = Math.min(min[dim], c);
+				max[dim] = Math.max(max[dim], c);
+			}
+		}
+		axis = 0;
+		if(max[1]-min[1] > max[axis]-min[axis])		axis = 1;
+		if(max[2]-min[2] > max[axis]-min[axis])		axis = 2;
+		// Sort
+		if(order.length < NCell) {
+			order = new int[NCell];
+			scratch = new int[NCell];
+		}
+		for(int ii=0; ii<NCell; ii++) 	order[ii] = ii;
+		Sort(box, 0, NCell);
+		// Sweep: compare each box with the boxes that start before it ends
+		int NFound = 0;
+		for(int io=0; io<NCell; io++) {
+			int ii = order[io];
+			double upper = box[6*ii+axis+3];
+			for(int jo=io+1; jo<NCell; jo++) {
+				int jj = order[jo];
+				if(box[6*jj+axis] > upper)		break;
+				if(!CollisionGrid.Overlap(box, ii, jj))		continue;
+				if(NFound==found.length) 	found = Arrays.copyOf(found, 2*NFound);
+				found[NFound++] = ii<jj ? (long)ii*NCell + jj : (long)jj*NCell + ii;
+			}
+		}
+		// Same order as a double loop over all cells
+		Arrays.sort(found, 0, NFound);
+		for(int ip=0; ip<NFound; ip++) 	pairs.Add((int)(found[ip]/NCell), (int)(found[ip]%NCell));
+	}
+
+	void Sort(double[] box, int start, int end) {		// Merge sort of order[start] to order[end-1] by the lower bound along the sweep axis
+		if(end-start<2)		return;
+		int mid = (start+end)/2;
+		Sort(box, start, mid);
+		Sort(box, mid, end);
+		int i0 = start, i1 = mid;
+		for(int ii=start; ii<end; ii++) {
+			if(i1==end || (i0<mid && box[6*order[i0]+axis] <= box[6*order[i1]+axis]))		scratch[ii] = order[i0++];
+			else																				scratch[ii] = order[i1++];
+		}
+		System.arraycopy(scratch, start, order, start, end-start);
+	}
+}
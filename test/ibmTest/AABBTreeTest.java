@@ -0,0 +1,140 @@
+package ibmTest;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.Before;
+
+import ibm.AABBTree;
+import ibm.Cell;
+import ibm.CollisionGrid;
+import ibm.Model;
+import ibm.PairList;
+import ibm.RadiusQuery;
+import ibm.RayCast;
+import ibm.Vector3d;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import random.rand;
+
+public class AABBTreeTest {
+	Model model;
+
+	@Before
+	public void SetUp() {
+		model = Colony(20e-6);
+	}
+
+	Model Colony(double size) {
+		Model model = new Model();
+		model.shapeX[0] = 0;
+		model.shapeX[1] = 0;
+		model.MWX[0] = model.MWX[1] = 10;
+		model.rhoX[0] = model.rhoX[1] = 100;
+		model.radiusCellMax[0] = 0.2e-6;
+		model.radiusCellMax[1] = 1e-5;								// 50 times larger, like S8 particles in AOM
+		model.UpdateDependentParameters();
+		Random random = new Random(1);
+		for(int ii=0; ii<300; ii++) {
+			int type = (ii%50==0) ? 1 : 0;
+			double x = random.nextDouble()*size, y = random.nextDouble()*size, z = random.nextDouble()*size;
+			new Cell(type, model.nCellMax[type], 0.0, x, y, z, 0.0, 0.0, 0.0, false, model);
+		}
+		return model;
+	}
+
+	boolean PairsEqualBruteForce(AABBTree tree) {
+		int NCell = model.cellArray.size();
+		double[] box = new double[6*NCell];
+		for(int ii=0; ii<NCell; ii++)		CollisionGrid.CellBox(model.cellArray.get(ii), 1.01, 0.0, box, 6*ii);
+		PairList pairs = new PairList();
+		tree.FindPairs(box, NCell, pairs);
+		int iPair = 0;
+		boolean equal = true;
+		for(int ii=0; ii<NCell; ii++) {
+			for(int jj=ii+1; jj<NCell; jj++) {
+				if(CollisionGrid.Overlap(box, ii, jj)) {
+					equal &= iPair<pairs.N && pairs.cell0[iPair]==ii && pairs.cell1[iPair]==jj;
+					iPair++;
+				}
+			}
+		}
+		return equal && iPair==pairs.N && pairs.N>0;
+	}
+
+	@Test
+	public void testTreePairsEqualBruteForce() {
+		assertTrue(PairsEqualBruteForce(model.CollisionTree()));
+	}
+
+	@Test
+	public void testTreeFollowsPopulation() {
+		AABBTree tree = model.CollisionTree();
+		assertTrue(PairsEqualBruteForce(tree));
+		// Divide, remove and move cells after the tree was built
+		for(int ii=0; ii<20; ii++) 		model.DivideCell(model.cellArray.get(2*ii));
+		model.cellArray.get(3).Remove();
+		model.cellArray.get(50).Remove();
+		model.cellArray.get(0).ballArray[0].pos.x += 5e-6;
+		assertTrue(tree.NLeaf()==model.cellArray.size());
+		assertTrue(PairsEqualBruteForce(tree));
+	}
+
+	@Test
+	public void testDivisionEqualsBruteForce() {
+		double[][] pos = new double[2][];
+		for(int broadphase=0; broadphase<2; broadphase++) {
+			Model colony = Colony(4e-6);								// Dense, so some daughters need several attempts
+			colony.broadphase = broadphase==0 ? 0 : 2;
+			for(int ii=colony.cellArray.size()-1; ii>=0; ii--) {		// Large cells would overlap with any daughter
+				if(colony.cellArray.get(ii).type==1) 	colony.cellArray.get(ii).Remove();
+			}
+			rand.Seed(1);
+			int NMother = colony.cellArray.size();
+			for(int ii=0; ii<NMother; ii+=2) 	colony.DivideCell(colony.cellArray.get(ii), ii==0);
+			pos[broadphase] = new double[3*colony.cellArray.size()];
+			for(int ii=0; ii<colony.cellArray.size(); ii++) {
+				pos[broadphase][3*ii  ] = colony.cellArray.get(ii).ballArray[0].pos.x;
+				pos[broadphase][3*ii+1] = colony.cellArray.get(ii).ballArray[0].pos.y;
+				pos[broadphase][3*ii+2] = colony.cellArray.get(ii).ballArray[0].pos.z;
+			}
+		}
+		assertTrue(Arrays.equals(pos[0], pos[1]));
+	}
+
+	@Test
+	public void testRadiusQueryEqualsBruteForce() {
+		RadiusQuery query = new RadiusQuery(model, new int[]{1}, 2e-6, 0.0);
+		ericson.Result closest = new ericson.Result();
+		boolean equal = true;
+		for(int ii=0; ii<model.cellArray.size(); ii++) {
+			Cell cell0 = model.cellArray.get(ii);
+			int N = 0;
+			for(Cell cell1 : model.cellArray) {
+				if(cell1.type==1 && query.SurfaceDistance(cell0, cell0.ballArray[0].radius, cell1, cell1.ballArray[0].radius, closest) < 2e-6) 	N++;
+			}
+			equal &= query.Count(ii)==N && query.Find(ii).size()==N;
+		}
+		assertTrue(equal);
+	}
+
+	@Test
+	public void testRayCastEqualsAllCells() {
+		RayCast ray = new RayCast(model);
+		Random random = new Random(2);
+		boolean equal = true;
+		int NHit = 0;
+		for(int ii=0; ii<1000; ii++) {
+			Vector3d dest = new Vector3d(random.nextDouble()*20e-6, random.nextDouble()*20e-6, random.nextDouble()*20e-6);
+			Vector3d dirn = new Vector3d(random.nextDouble()-0.5, random.nextDouble()-0.5, random.nextDouble()-0.5).normalise();
+			boolean hit = ray.Cast(dest, dirn, 0.2e-6, null);
+			Cell firstCell = ray.firstCell;
+			double firstDist = ray.firstDist;
+			equal &= ray.CastAll(dest, dirn, 0.2e-6, null)==hit && ray.firstCell==firstCell && ray.firstDist==firstDist;
+			if(hit)		NHit++;
+		}
+		assertTrue(equal && NHit>0);
+	}
+}
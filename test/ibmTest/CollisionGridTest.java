@@ -0,0 +1,100 @@
+package ibmTest;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.Before;
+
+import ibm.Cell;
+import ibm.CollisionGrid;
+import ibm.Model;
+import ibm.PairList;
+import ibm.SweepAndPrune;
+
+import java.util.Random;
+
+public class CollisionGridTest {
+	Model model;
+	double[] box;
+	int NCell = 200;
+
+	@Before
+	public void SetUp() {
+		model = new Model();
+		model.shapeX[0] = 0;
+		model.shapeX[2] = 2;
+		model.MWX[0] = model.MWX[2] = 10;
+		model.rhoX[0] = model.rhoX[2] = 100;
+		model.radiusCellMax[0] = model.radiusCellMax[2] = 0.5e-6;
+		model.lengthCellMax[2] = 2*model.radiusCellMax[2];
+		model.UpdateDependentParameters();
+		Random random = new Random(1);
+		for(int ii=0; ii<NCell; ii++) {
+			int type = (ii%2==0) ? 0 : 2;
+			double x = random.nextDouble()*10e-6, y = random.nextDouble()*10e-6, z = random.nextDouble()*10e-6;
+			new Cell(type, model.nCellMax[type], 0.0, x, y, z, x+model.lengthCellMax[2], y, z, false, model);
+		}
+		box = new double[6*NCell];
+		for(int ii=0; ii<NCell; ii++)		CollisionGrid.CellBox(model.cellArray.get(ii), 1.01, 0.0, box, 6*ii);
+	}
+
+	@Test
+	public void testGridPairsEqualBruteForce() {
+		PairList pairs = new PairList();
+		new CollisionGrid(CollisionGrid.BinSize(model)).FindPairs(box, NCell, pairs);
+		// Brute force gives the same pairs in the same order
+		int iPair = 0;
+		boolean equal = true;
+		for(int ii=0; ii<NCell; ii++) {
+			for(int jj=ii+1; jj<NCell; jj++) {
+				if(CollisionGrid.Overlap(box, ii, jj)) {
+					equal &= iPair<pairs.N && pairs.cell0[iPair]==ii && pairs.cell1[iPair]==jj;
+					iPair++;
+				}
+			}
+		}
+		assertTrue(equal && iPair==pairs.N && pairs.N>0);
+	}
+
+	@Test
+	public void testGridSmallBins() {
+		// Bins smaller than cells: pairs that share several bins are still reported once
+		PairList pairsSmall = new PairList();
+		PairList pairsLarge = new PairList();
+		new CollisionGrid(0.1e-6).FindPairs(box, NCell, pairsSmall);
+		new CollisionGrid(CollisionGrid.BinSize(model)).FindPairs(box, NCell, pairsLarge);
+		boolean equal = pairsSmall.N == pairsLarge.N;
+		for(int ii=0; equal && ii<pairsSmall.N; ii++)
+			equal = pairsSmall.cell0[ii]==pairsLarge.cell0[ii] && pairsSmall.cell1[ii]==pairsLarge.cell1[ii];
+		assertTrue(equal);
+	}
+
+	@Test
+	public void testSweepAndPruneEqualsGrid() {
+		PairList pairsSweep = new PairList();
+		PairList pairsGrid = new PairList();
+		new SweepAndPrune().FindPairs(box, NCell, pairsSweep);
+		new CollisionGrid(CollisionGrid.BinSize(model)).FindPairs(box, NCell, pairsGrid);
+		boolean equal = pairsSweep.N == pairsGrid.N;
+		for(int ii=0; equal && ii<pairsSweep.N; ii++)
+			equal = pairsSweep.cell0[ii]==pairsGrid.cell0[ii] && pairsSweep.cell1[ii]==pairsGrid.cell1[ii];
+		assertTrue(equal && pairsSweep.N>0);
+	}
+
+	@Test
+	public void testOverlapPairsEqualBruteForce() {
+		// Includes rod-sphere pairs
+		PairList pairs = model.DetectCollisionCellPairs(1.01);
+		int iPair = 0;
+		boolean equal = true;
+		for(int ii=0; ii<NCell; ii++) {
+			for(int jj=ii+1; jj<NCell; jj++) {
+				if(model.DetectCollisionCellCell(model.cellArray.get(ii), model.cellArray.get(jj), 1.01)) {
+					equal &= iPair<pairs.N && pairs.cell0[iPair]==ii && pairs.cell1[iPair]==jj;
+					iPair++;
+				}
+			}
+		}
+		assertTrue(equal && iPair==pairs.N && pairs.N>0);
+	}
+}
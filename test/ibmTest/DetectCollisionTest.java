@@ -0,0 +1,62 @@
+package ibmTest;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.Before;
+
+import ibm.Vector3d;
+import ericson.DetectCollision;
+import ericson.Result;
+import ericson.ReturnObject;
+
+import java.util.Random;
+
+public class DetectCollisionTest {
+	Vector3d[] point;
+
+	@Before
+	public void SetUp() {
+		Random random = new Random(1);
+		point = new Vector3d[4000];
+		for(int ii=0; ii<point.length; ii++) {
+			point[ii] = new Vector3d(random.nextDouble()*5e-6, random.nextDouble()*5e-6, random.nextDouble()*5e-6);
+		}
+		for(int ii=0; ii<400; ii+=4) {												// Parallel segments and a point on the line
+			point[ii+3] = point[ii+2].plus(point[ii+1].minus(point[ii]).times(2.0));
+			point[ii+2] = point[ii].plus(point[ii+1].minus(point[ii]).times(1.5));
+		}
+	}
+
+	@Test
+	public void testResultEqualsReturnObject() {
+		Result R = new Result();
+		double[] pos = new double[12];
+		boolean equal = true;
+		for(int ii=0; ii<point.length; ii+=4) {
+			Vector3d p1 = point[ii], q1 = point[ii+1], p2 = point[ii+2], q2 = point[ii+3];
+			for(int jj=0; jj<4; jj++) {
+				pos[3*jj] = point[ii+jj].x;		pos[3*jj+1] = point[ii+jj].y;		pos[3*jj+2] = point[ii+jj].z;
+			}
+			ReturnObject E = DetectCollision.LinesegLineseg(p1, q1, p2, q2);
+			DetectCollision.LinesegLineseg(pos, 0, 3, 6, 9, R);
+			equal &= Same(E, R, true);
+			E = DetectCollision.LinesegLine(p1, q1, p2, q2);
+			DetectCollision.LinesegLine(p1, q1, p2, q2, R);
+			equal &= Same(E, R, true);
+			E = DetectCollision.LinesegPoint(p1, q1, p2);
+			DetectCollision.LinesegPoint(pos, 0, 3, 6, R);
+			equal &= Same(E, R, false);
+			E = DetectCollision.LinePoint(p1, q1, q2);
+			DetectCollision.LinePoint(p1, q1, q2, R);
+			equal &= Same(E, R, false);
+		}
+		assertTrue(equal);
+	}
+
+	boolean Same(ReturnObject E, Result R, boolean segment) {		// Bitwise equal, not just close
+		boolean same = E.dP.x==R.dPx && E.dP.y==R.dPy && E.dP.z==R.dPz && E.dist==R.dist && E.sc==R.sc;
+		if(segment) 	same &= E.tc==R.tc && E.c1.x==R.c1x && E.c1.y==R.c1y && E.c1.z==R.c1z && E.c2.x==R.c2x && E.c2.y==R.c2y && E.c2.z==R.c2z;
+		return same;
+	}
+}
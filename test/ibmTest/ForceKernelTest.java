@@ -0,0 +1,153 @@
+package ibmTest;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.Before;
+
+import ibm.Ball;
+import ibm.Cell;
+import ibm.Model;
+import ibm.OverdampedODE;
+import ibm.RelaxationODE;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class ForceKernelTest {
+	Model model;
+	double[] y;
+
+	@Before
+	public void SetUp() {
+		model = new Model();
+		model.shapeX[0] = 0;
+		model.shapeX[2] = 2;
+		model.MWX[0] = model.MWX[2] = 10;
+		model.rhoX[0] = model.rhoX[2] = 100;
+		model.radiusCellMax[0] = model.radiusCellMax[2] = 0.5e-6;
+		model.lengthCellMax[2] = 2*model.radiusCellMax[2];
+		model.UpdateDependentParameters();
+		model.normalForce = true;
+		model.gravity = true;
+		model.anchoring = true;
+		Random random = new Random(1);
+		for(int ii=0; ii<200; ii++) {
+			int type = (ii%2==0) ? 0 : 2;
+			double x = random.nextDouble()*5e-6, y = random.nextDouble()*5e-6, z = random.nextDouble()*5e-6;
+			new Cell(type, model.nCellMax[type], 0.0, x, y, z, x+model.lengthCellMax[2], y, z, false, model);
+		}
+		for(int ii=0; ii<20; ii+=2) 	model.cellArray.get(ii).Stick(model.cellArray.get(ii+1));
+		for(int ii=20; ii<30; ii++) 	model.cellArray.get(ii).Anchor();
+		y = new double[6*model.ballArray.size()];
+		for(int ii=0; ii<model.ballArray.size(); ii++) {
+			Ball ball = model.ballArray.get(ii);
+			y[6*ii  ] = ball.pos.x;		y[6*ii+1] = ball.pos.y;		y[6*ii+2] = ball.pos.z;
+			y[6*ii+3] = random.nextDouble()*1e-6;
+		}
+	}
+
+	double[] Derivatives(boolean forceKernel, boolean neighbourList) {
+		model.forceKernel = forceKernel;
+		model.neighbourList = neighbourList;
+		double[] yDot = new double[y.length];
+		new RelaxationODE(model).computeDerivatives(0.0, y, yDot);
+		return yDot;
+	}
+
+	@Test
+	public void testKernelEqualsObjects() {
+		assertTrue(Arrays.equals(Derivatives(false, false), Derivatives(true, false)));
+		assertTrue(Arrays.equals(Derivatives(false, true), Derivatives(true, true)));
+	}
+
+	@Test
+	public void testKernelEqualsObjectsBruteForce() {
+		model.broadphase = 0;
+		assertTrue(Arrays.equals(Derivatives(false, false), Derivatives(true, false)));
+	}
+
+	@Test
+	public void testParallelEqualsSerial() {
+		model.NThread = 4;
+		for(int broadphase=0; broadphase<4; broadphase++) {
+			model.broadphase = broadphase;
+			model.parallelForce = 0;
+			double[] serial = Derivatives(true, true);
+			model.parallelForce = 1;
+			double[] parallel = Derivatives(true, true);
+			boolean close = true;
+			for(int ii=0; ii<y.length; ii++) 	close &= Math.abs(parallel[ii]-serial[ii]) <= 1e-9*Math.abs(serial[ii]) + 1e-20;		// Only summation order differs
+			assertTrue(close);
+		}
+	}
+
+	@Test
+	public void testOrderedEqualsSerial() {
+		for(int broadphase=0; broadphase<4; broadphase++) {
+			model.broadphase = broadphase;
+			model.parallelForce = 0;
+			double[] serial = Derivatives(true, true);
+			model.parallelForce = 2;
+			for(int NThread=2; NThread<=5; NThread+=3) {
+				model.NThread = NThread;
+				assertTrue(Arrays.equals(serial, Derivatives(true, true)));
+			}
+		}
+	}
+
+	@Test
+	public void testSpringChangesReachKernel() {
+		RelaxationODE ode = new RelaxationODE(model);
+		double[] yDot = new double[y.length];
+		ode.computeDerivatives(0.0, y, yDot);				// Builds the kernel and its spring table
+		model.Ks[0][2] = model.Ks[2][0] = 1e-11;
+		model.cellArray.get(40).Stick(model.cellArray.get(41));
+		model.anchorSpringArray.get(0).ballArray[0].pos.z += 1e-7;
+		model.anchorSpringArray.get(0).ResetRestLength();
+		ode.computeDerivatives(0.0, y, yDot);
+		assertTrue(Arrays.equals(Derivatives(false, true), yDot));
+	}
+
+	@Test
+	public void testSphereKernelEqualsGeneric() {
+		model = new Model();
+		model.MWX[0] = 10;
+		model.rhoX[0] = 100;
+		model.radiusCellMax[0] = 0.5e-6;
+		model.UpdateDependentParameters();
+		Random random = new Random(1);
+		for(int ii=0; ii<500; ii++) {
+			double x = random.nextDouble()*8e-6, y = random.nextDouble()*8e-6, z = random.nextDouble()*8e-6;
+			new Cell(0, model.nCellMax[0]*(0.5+0.5*random.nextDouble()), 0.0, x, y, z, x, y, z, false, model);
+		}
+		y = new double[6*model.ballArray.size()];
+		for(int ii=0; ii<model.ballArray.size(); ii++) {
+			Ball ball = model.ballArray.get(ii);
+			y[6*ii  ] = ball.pos.x;		y[6*ii+1] = ball.pos.y;		y[6*ii+2] = ball.pos.z;
+		}
+		model.sphereKernel = false;
+		double[] generic = Derivatives(true, true);
+		model.sphereKernel = true;
+		assertTrue(Arrays.equals(generic, Derivatives(true, true)));
+	}
+
+	@Test
+	public void testOverdampedVelocityIsForceOverKd() {
+		for(int ii=0; ii<model.ballArray.size(); ii++) 	y[6*ii+3] = 0.0;		// No drag in the inertial forces
+		double[] yDot = Derivatives(true, true);
+		double[] x = new double[3*model.ballArray.size()], xDot = new double[x.length];
+		for(int ii=0; ii<model.ballArray.size(); ii++) 	System.arraycopy(y, 6*ii, x, 3*ii, 3);
+		new OverdampedODE(model).computeDerivatives(0.0, x, xDot);
+		boolean close = true;
+		for(int ii=0; ii<model.ballArray.size(); ii++) {
+			Ball ball = model.ballArray.get(ii);
+			double m = ball.n*model.MWX[ball.cell.type];
+			for(int jj=0; jj<3; jj++) {
+				double v = yDot[6*ii+3+jj]*m/model.Kd;
+				close &= Math.abs(xDot[3*ii+jj]-v) <= 1e-9*Math.abs(v) + 1e-20;
+			}
+		}
+		assertTrue(close);
+	}
+}
@@ -4,11 +4,18 @@ import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 import org.junit.Before;
 
+import ibm.Ball;
 import ibm.Cell;
 import ibm.Model;
+import ibm.RelaxationODE;
 
 import java.util.ArrayList;
 
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.apache.commons.math3.ode.nonstiff.DormandPrince54Integrator;
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
 public class ModelTest {
 	Model model;
 	Cell sphere0;
@@ -122,4 +129,271 @@ public class ModelTest {
 		int iRod1 = overlap.indexOf(rod1);
 		assertTrue(iRod1-iRod0 == 1); 
 	}
+
+	/* Relaxation */
+	@Test
+	public void ModelTestImplicitRelaxation() {
+		double[] distance = new double[2];
+		for(int solver=0; solver<2; solver++) {
+			sphere0.ballArray[0].pos.x = -0.4e-6;
+			sphere1.ballArray[0].pos.x = 0.4e-6;
+			model.overdamped = true;
+			model.relaxationSolver = solver;
+			model.Relaxation();
+			distance[solver] = sphere1.ballArray[0].pos.minus(sphere0.ballArray[0].pos).norm();
+		}
+		assertTrue(Math.abs(distance[1] - 2*1.01*rSphere) < 1e-9);			// Just touching, radii are multiplied by 1.01 in relaxation
+		assertTrue(Math.abs(distance[1] - distance[0]) < model.ODETol);
+	}
+
+	@Test
+	public void ModelTestRespaRelaxation() {
+		double[] distance = new double[2];
+		double[] length = new double[2];
+		model.shapeX[2] = 1;
+		Cell rod = new Cell(2, nRod, 3.0, 0, 0, 3+model.lengthCellMax[2], 0, 0, false, model);
+		for(int solver=0; solver<2; solver++) {
+			sphere0.ballArray[0].pos.x = -0.4e-6;
+			sphere1.ballArray[0].pos.x = 0.4e-6;
+			rod.ballArray[0].pos.x = 3.0;
+			rod.ballArray[1].pos.x = 3+1.2*model.lengthCellMax[2];		// Stretch the rod spring
+			for(Cell cell : new Cell[]{sphere0, sphere1, rod}) 	for(int ii=0; ii<cell.ballArray.length; ii++) 	cell.ballArray[ii].vel.x = 0.0;
+			model.relaxationSolver = 2*solver;
+			model.Relaxation();
+			distance[solver] = sphere1.ballArray[0].pos.minus(sphere0.ballArray[0].pos).norm();
+			length[solver] = rod.ballArray[1].pos.minus(rod.ballArray[0].pos).norm();
+		}
+		assertTrue(Math.abs(distance[1] - distance[0]) < 1e-9);
+		assertTrue(Math.abs(length[1] - length[0]) < 1e-9);
+	}
+
+	@Test
+	public void ModelTestFireRelaxation() {
+		sphere0.ballArray[0].pos.x = -0.4e-6;
+		sphere1.ballArray[0].pos.x = 0.4e-6;
+		model.relaxationSolver = 3;
+		int[] out = model.Relaxation();
+		double distance = sphere1.ballArray[0].pos.minus(sphere0.ballArray[0].pos).norm();
+		assertTrue(out[0]<model.fireNStepMax && out[10]<out[0]);				// Restarts are counted as rejected steps
+		assertTrue(distance > 2*1.01*rSphere - model.fireForceTol/model.Kc);		// No overlap left, radii are multiplied by 1.01 in relaxation
+		assertTrue(distance < 2*1.01*rSphere + 0.01*rSphere);					// The last step may carry them a little apart
+		assertTrue(sphere0.ballArray[0].vel.norm()==0.0);
+	}
+
+	@Test
+	public void ModelTestProjectionRelaxation() {
+		model.shapeX[2] = 1;
+		Cell rod = new Cell(2, nRod, 3.0, 0, 0, 3+model.lengthCellMax[2], 0, 0, false, model);
+		double restLength = model.rodSpringArray.get(0).restLength;
+		model.relaxationSolver = 4;
+		for(int jacobi=0; jacobi<2; jacobi++) {
+			sphere0.ballArray[0].pos.x = -0.4e-6;
+			sphere1.ballArray[0].pos.x = 0.4e-6;
+			rod.ballArray[1].pos.x = 3+1.2*model.lengthCellMax[2];		// Stretch the rod
+			model.projectionJacobi = jacobi==1;
+			model.Relaxation();
+			double distance = sphere1.ballArray[0].pos.minus(sphere0.ballArray[0].pos).norm();
+			double length = rod.ballArray[1].pos.minus(rod.ballArray[0].pos).norm();
+			assertTrue(Math.abs(distance - 2*1.01*rSphere) < 1e-9);		// Just touching, radii are multiplied by 1.01 in relaxation
+			assertTrue(Math.abs(length - restLength) < 1e-9);
+		}
+	}
+
+	@Test
+	public void ModelTestRodConstraint() {
+		model.shapeX[2] = 1;
+		Cell rod = new Cell(2, nRod, 3.0, 0, 0, 3+model.lengthCellMax[2], 0, 0, false, model);
+		double restLength = rod.rodSpringArray.get(0).restLength;
+		// DP54: a sphere pushes on the end of the rod. Relax only briefly, so it still does
+		model.relaxationTimeStepdt = 1e-3;
+		double[] drift = new double[2];
+		for(int constraint=0; constraint<2; constraint++) {
+			rod.ballArray[0].pos.x = 3.0;
+			rod.ballArray[1].pos.x = 3+model.lengthCellMax[2];
+			sphere0.ballArray[0].pos.x = 3+model.lengthCellMax[2]+0.8e-6;
+			sphere0.ballArray[0].pos.y = sphere0.ballArray[0].pos.z = 0.0;
+			for(Ball ball : model.ballArray) 	ball.vel.x = ball.vel.y = ball.vel.z = 0.0;
+			model.rodConstraint = constraint==1;
+			model.Relaxation();
+			drift[constraint] = Math.abs(rod.ballArray[1].pos.minus(rod.ballArray[0].pos).norm() - restLength);
+		}
+		assertTrue(drift[0] > 1e-9 && drift[1] < 1e-6*drift[0]);		// The spring gives way, the constraint only keeps the integration error left by its stabilisation at rodConstraintRate
+		// The others project the rod exactly, even with a rod spring that would take forever
+		model.relaxationTimeStepdt = 0.2;
+		sphere0.ballArray[0].pos.x = -1.0;
+		model.Kr = 1.0;
+		rod.rodSpringArray.get(0).ResetK();
+		int[] solver = {2, 3};
+		for(int ii=0; ii<solver.length; ii++) {
+			rod.ballArray[1].pos.x = 3+1.2*model.lengthCellMax[2];		// Stretch the rod
+			rod.ballArray[1].vel.y = 1e-6;
+			model.relaxationSolver = solver[ii];
+			model.Relaxation();
+			double length = rod.ballArray[1].pos.minus(rod.ballArray[0].pos).norm();
+			assertTrue(Math.abs(length - restLength) < 1e-12);
+		}
+	}
+
+	@Test
+	public void ModelTestRodConstraintNeedsForceKernel() {
+		model.shapeX[2] = 1;
+		new Cell(2, nRod, 3.0, 0, 0, 3+model.lengthCellMax[2], 0, 0, false, model);
+		model.forceKernel = false;
+		for(int ii=0; ii<2; ii++) {
+			model.rodConstraint = ii==0;
+			model.parallelForce = ii==0 ? 0 : 1;
+			boolean thrown = false;
+			try {
+				model.Relaxation();
+			} catch(RuntimeException e) {
+				thrown = true;
+			}
+			assertTrue(thrown);				// The Ball and Cell objects would silently use the rod spring and one thread
+		}
+	}
+
+	@Test
+	public void ModelTestRigidRods() {
+		model.shapeX[2] = 1;
+		Cell rod = new Cell(2, nRod, 3.0, 0, 0, 3+model.lengthCellMax[2], 0, 0, false, model);
+		double restLength = rod.rodSpringArray.get(0).restLength;
+		model.rigidRods = true;
+		for(int overdamped=0; overdamped<2; overdamped++) {
+			rod.ballArray[0].pos.x = 3.0;		rod.ballArray[0].pos.y = 0.0;
+			rod.ballArray[1].pos.x = 3+1.2*model.lengthCellMax[2];		rod.ballArray[1].pos.y = 0.0;		// Stretched
+			rod.ballArray[1].vel.y = 1e-6;
+			sphere0.ballArray[0].pos.x = 3+0.5*model.lengthCellMax[2];		// Overlaps the middle of the rod
+			sphere0.ballArray[0].pos.y = 0.8e-6;
+			model.overdamped = overdamped==1;
+			model.Relaxation();
+			double length = rod.ballArray[1].pos.minus(rod.ballArray[0].pos).norm();
+			assertTrue(Math.abs(length - restLength) < 1e-12);
+			assertTrue(model.MaxOverlap() < 1e-9 && rod.ballArray[0].pos.y < 0.0 && rod.ballArray[1].pos.y < 0.0);		// Pushed away as a whole
+		}
+	}
+
+	@Test
+	public void ModelTestRelaxationScaling() {
+		model.relaxationScaling = true;
+		RelaxationODE ode = new RelaxationODE(model);
+		double[] absTol = new double[ode.getDimension()], relTol = new double[ode.getDimension()];
+		ode.Tolerances(absTol, relTol);
+		double r = 0.0;
+		for(Ball ball : model.ballArray) 	r += ball.radius/model.ballArray.size();
+		assertTrue(Math.abs(absTol[0] - model.relaxationScaledTol*r) < 1e-20 && relTol[0]==0.0);
+		assertTrue(Math.abs(absTol[3] - model.relaxationScaledTol*r/model.relaxationTimeStepdt) < 1e-20 && relTol[3]==model.relaxationScaledTol);
+		for(int overdamped=0; overdamped<2; overdamped++) {
+			double[] distance = new double[2];
+			for(int scaling=0; scaling<2; scaling++) {
+				sphere0.ballArray[0].pos.x = -0.4e-6;
+				sphere1.ballArray[0].pos.x = 0.4e-6;
+				sphere0.ballArray[0].vel.x = sphere1.ballArray[0].vel.x = 0.0;
+				model.overdamped = overdamped==1;
+				model.relaxationScaling = scaling==1;
+				model.ODETol = 1e-12;										// Reference without scaling
+				int[] out = model.Relaxation();
+				assertTrue(out[0]>0 && out[10]>=0);
+				distance[scaling] = sphere1.ballArray[0].pos.minus(sphere0.ballArray[0].pos).norm();
+			}
+			assertTrue(Math.abs(distance[1] - distance[0]) < 10*model.relaxationScaledTol*r);		// DP54 bounds the RMS error over all values, which the resting rods dilute
+		}
+	}
+
+	@Test
+	public void ModelTestRejected() {
+		for(int initialStepSize=0; initialStepSize<2; initialStepSize++) {
+			final int[] count = new int[3];					// Accepted steps, attempts, evaluations
+			FirstOrderDifferentialEquations decay = new FirstOrderDifferentialEquations() {
+				double tLast = Double.NaN;
+				public int getDimension() {
+					return 1;
+				}
+				public void computeDerivatives(double t, double[] y, double[] yDot) {
+					if(t==tLast) 	count[1]++;						// Only the last two stages of an attempt are at the same time, the end of the step
+					tLast = t;
+					count[2]++;
+					yDot[0] = -10.0*y[0];
+				}
+			};
+			DormandPrince54Integrator integrator = new DormandPrince54Integrator(0, 1.0, 1e-10, 1e-10);
+			integrator.addStepHandler(new StepHandler() {
+				public void init(double t0, double[] y0, double t) {}
+				public void handleStep(StepInterpolator interpolator, boolean isLast) {
+					count[0]++;
+				}
+			});
+			if(initialStepSize==1) 	integrator.setInitialStepSize(1.0);	// Far too large, rejected several times
+			double[] y = {1.0};
+			integrator.integrate(decay, 0.0, y, 1.0, y);
+			assertTrue(integrator.getEvaluations()==count[2]);
+			assertTrue(Model.Rejected(integrator, initialStepSize==1, count[0]) == count[1]-count[0]);
+			if(initialStepSize==1) 	assertTrue(count[1]-count[0] > 0);
+		}
+	}
+
+	@Test
+	public void ModelTestFormBreakPolicy() {
+		sphere0.ballArray[0].pos.x = -0.4e-6;
+		sphere1.ballArray[0].pos.x = 0.4e-6;
+		model.formBreakPolicy = 1;
+		model.formBreakNStep = Integer.MAX_VALUE;
+		model.formBreakDisplacement = 0.0;
+		int[] out = model.Relaxation();
+		assertTrue(out[7]==2 && out[7]+out[8]==out[0]);						// Only the first and last step check
+		model.formBreakDisplacement = 1e-15;
+		out = model.Relaxation();
+		assertTrue(out[8]==0 && out[9]>0 && out[7]==out[0]);				// Balls move every step
+	}
+
+	@Test
+	public void ModelTestRelaxationSession() {
+		final int[] NOutput = {0};
+		double[] distance = new double[2];
+		for(int session=0; session<2; session++) {
+			sphere0.ballArray[0].pos.x = -0.4e-6;
+			sphere1.ballArray[0].pos.x = 0.4e-6;
+			model.relaxationSession = session==1;
+			model.Relaxation(5, new Model.RelaxationOutput() {
+				public void Output(int[] relaxationOut) {
+					NOutput[0]++;
+				}
+			});
+			distance[session] = sphere1.ballArray[0].pos.minus(sphere0.ballArray[0].pos).norm();
+		}
+		assertTrue(NOutput[0]==10 && model.relaxationIter==10 && Math.abs(model.relaxationTime - 10*model.relaxationTimeStepdt) < 1e-12);
+		assertTrue(Math.abs(distance[1] - distance[0]) < 1e-9);
+	}
+
+	@Test
+	public void ModelTestRelaxationEmpty() {
+		Model empty = new Model();
+		for(int overdamped=0; overdamped<2; overdamped++) {
+			for(int solver=0; solver<5; solver++) {
+				empty.overdamped = overdamped==1;
+				empty.relaxationSolver = solver;
+				empty.relaxationScaling = solver==0;
+				assertTrue(empty.Relaxation()[0]==0);
+			}
+		}
+		empty.relaxationSession = true;
+		empty.relaxationSolver = 0;
+		assertTrue(empty.Relaxation(2, new Model.RelaxationOutput() {
+			public void Output(int[] relaxationOut) {}
+		})[0]==0 && empty.relaxationIter==2);
+	}
+
+	@Test
+	public void ModelTestRelaxationStop() {
+		final int[] NOutput = {0};
+		sphere0.ballArray[0].pos.x = -0.4e-6;
+		sphere1.ballArray[0].pos.x = 0.4e-6;
+		model.relaxationStop = true;
+		model.Relaxation(25, new Model.RelaxationOutput() {
+			public void Output(int[] relaxationOut) {
+				NOutput[0]++;
+			}
+		});
+		assertTrue(NOutput[0]<25 && model.relaxationIter==NOutput[0] && !model.relaxationBusy);
+		assertTrue(model.MaxOverlap() < model.relaxationOverlapLim);
+	}
 }
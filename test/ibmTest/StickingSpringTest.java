@@ -113,6 +113,25 @@ public class StickingSpringTest {
 		assertTrue(model.stickSpringArray.size() == 0);
 	}
 	
+	@Test
+	public void testStickFormAllPairs() {
+		// Forming springs with the broadphase gives the same springs as checking all pairs
+		java.util.Random random = new java.util.Random(1);
+		for(Ball ball : model.ballArray) {
+			ball.pos.x = random.nextDouble()*3e-6;
+			ball.pos.y = random.nextDouble()*3e-6;
+			ball.pos.z = random.nextDouble()*3e-6;
+		}
+		int NStickForm = model.FormBreak()[2];
+		String stuck = "";
+		for(StickSpring spring : model.stickSpringArray) 	stuck += spring.ballArray[0].cell.Index() + "-" + spring.ballArray[1].cell.Index() + " ";
+		while(!model.stickSpringArray.isEmpty()) 		model.stickSpringArray.get(0).Break();
+		int NStickFormAllPairs = model.FormBreakAllPairs()[2];
+		String stuckAllPairs = "";
+		for(StickSpring spring : model.stickSpringArray) 	stuckAllPairs += spring.ballArray[0].cell.Index() + "-" + spring.ballArray[1].cell.Index() + " ";
+		assertTrue(NStickForm>0 && NStickForm==NStickFormAllPairs && stuck.equals(stuckAllPairs));
+	}
+	
 	@Test
 	public void testStickGetL() {
 		sphere0.Stick(sphere1);